@@ -0,0 +1,424 @@
+package io.wazo.callkeep;
+
+import static io.wazo.callkeep.CallKeepConstants.ACTION_END_CALL;
+import static io.wazo.callkeep.CallKeepConstants.ACTION_INCOMING_CALL;
+import static io.wazo.callkeep.CallKeepConstants.EXTRA_CALLER_NAME;
+import static io.wazo.callkeep.CallKeepConstants.EXTRA_CALL_DATA;
+import static io.wazo.callkeep.CallKeepConstants.EXTRA_CALL_NUMBER;
+import static io.wazo.callkeep.CallKeepConstants.EXTRA_CALL_UUID;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Looper;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import io.wazo.callkeep.utils.CallDataCodec;
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * Push storm simulation of the incoming call path:
+ * push -> displayIncomingCall -> addNewIncomingCall -> onCreateIncomingConnection -> ring ->
+ * ACTION_INCOMING_CALL delivered to the listener.
+ *
+ * The Android side can't run on a plain JVM, so the Telecom hop is a {@link FakeTelecom} that
+ * calls {@link StormConnectionService#onCreateIncomingConnection} synchronously. The service runs
+ * the same code as VoiceConnectionService.makeIncomingCall for everything but the Connection
+ * itself: CallInfo.fromBundle on CallDataCodec extras, the hold setting, the CallStateMachine,
+ * {@link CallAdmission} (CallRegistry, ForegroundServiceLifecycle, ACTION_ONGOING_CALL) and
+ * CallEventBus. Binder, Telecom, the settings store and the Flutter channel are not part of the
+ * numbers; neither is AudioRouteManager, which the incoming path only allocates.
+ *
+ * The package is the plugin's, so the harness can call its package-private classes.
+ *
+ * Pushes arrive on a generator thread following a Poisson process (or in bursts) and are handled
+ * one at a time on a single "main" thread, like the real ConnectionService. Time to ring is
+ * measured from the scheduled arrival, so queueing behind a saturated main thread shows in p99;
+ * the generator does not spin, so the timer slack of parkNanos (~50us on Linux) is part of the
+ * floor. Allocations are counted on the main thread only, payloads are built by the generator
+ * (except in closed loop mode).
+ *
+ *   gradle -p android/benchmark pushStorm -Pstorm.args="--rate 20000 --duration 5"
+ *   gradle -p android/benchmark pushStorm -Pstorm.args="--sweep"
+ *
+ * Options: --rate pushes/s (0 = closed loop, as fast as possible), --burst pushes per arrival,
+ * --duration and --warmup in seconds, --calls ringing calls kept before the oldest is ended,
+ * --sweep to double the rate until throughput or p99 give up.
+ */
+public final class PushStorm {
+    // Connection.STATE_NEW, once setInitialized() ran, and Connection.STATE_RINGING
+    private static final int STATE_NEW = 1;
+    private static final int STATE_RINGING = 2;
+    private static final String EXTRA_INCOMING_CALL_EXTRAS = "android.telecom.extra.INCOMING_CALL_EXTRAS";
+    private static final Push POISON = new Push(null, 0);
+
+    private int rate = 10000;
+    private int burst = 1;
+    private double durationSeconds = 5;
+    private double warmupSeconds = 1;
+    private int maxCalls = 8;
+    private boolean sweep = false;
+
+    public static void main(String[] args) throws InterruptedException {
+        PushStorm storm = new PushStorm();
+        storm.parse(args);
+        System.out.println(Result.HEADER);
+        if (!storm.sweep) {
+            storm.run(storm.rate, storm.warmupSeconds);
+            System.out.println(storm.run(storm.rate, storm.durationSeconds));
+            return;
+        }
+        storm.run(0, storm.warmupSeconds);
+        for (int rate = 1000; ; rate *= 2) {
+            Result result = storm.run(rate, storm.durationSeconds);
+            System.out.println(result);
+            if (result.throughput < 0.95 * rate || result.p99Micros > 100_000) {
+                System.out.println("Saturated at about " + (int) result.throughput + " pushes/s");
+                return;
+            }
+        }
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--rate":
+                    rate = Integer.parseInt(args[++i]);
+                    break;
+                case "--burst":
+                    burst = Math.max(1, Integer.parseInt(args[++i]));
+                    break;
+                case "--duration":
+                    durationSeconds = Double.parseDouble(args[++i]);
+                    break;
+                case "--warmup":
+                    warmupSeconds = Double.parseDouble(args[++i]);
+                    break;
+                case "--calls":
+                    maxCalls = Math.max(1, Integer.parseInt(args[++i]));
+                    break;
+                case "--sweep":
+                    sweep = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+    }
+
+    private Result run(int rate, double seconds) throws InterruptedException {
+        long durationNanos = (long) (seconds * 1e9);
+        // The thread handling the pushes is the main thread, where CallEventBus dispatches inline
+        Looper.prepareMainLooper();
+        RingRecorder recorder = new RingRecorder();
+        CallEventBus.register(recorder);
+        StormConnectionService service = new StormConnectionService(maxCalls);
+        FakeTelecom telecom = new FakeTelecom(service);
+
+        long allocatedBefore;
+        long start = System.nanoTime();
+        if (rate == 0) {
+            allocatedBefore = allocatedBytes();
+            while (System.nanoTime() - start < durationNanos) {
+                Push push = new Push(payload(), System.nanoTime());
+                recorder.arrivedAt = push.arrivedAt;
+                displayIncomingCall(telecom, push.payload);
+            }
+        } else {
+            BlockingQueue<Push> queue = new ArrayBlockingQueue<>(1 << 16);
+            Thread generator = new Thread(() -> generate(queue, rate, start, durationNanos), "push-generator");
+            generator.start();
+            allocatedBefore = allocatedBytes();
+            while (true) {
+                Push push = queue.take();
+                if (push == POISON) {
+                    break;
+                }
+                recorder.arrivedAt = push.arrivedAt;
+                displayIncomingCall(telecom, push.payload);
+            }
+            generator.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        CallEventBus.unregister(recorder);
+        return new Result(rate, recorder, elapsed, allocatedBefore < 0 ? -1 : allocated);
+    }
+
+    /**
+     * Poisson arrivals at the given rate, each one carrying {@link #burst} pushes.
+     */
+    private void generate(BlockingQueue<Push> queue, int rate, long start, long durationNanos) {
+        Random random = new Random(42);
+        double meanGapNanos = 1e9 * burst / rate;
+        long next = start;
+        try {
+            while (next - start < durationNanos) {
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                for (int i = 0; i < burst; i++) {
+                    queue.put(new Push(payload(), next));
+                }
+                next += (long) (-Math.log(1 - random.nextDouble()) * meanGapNanos);
+            }
+            queue.put(POISON);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** FCM data message, as handed to the app's push handler. */
+    private static Map<String, String> payload() {
+        Map<String, String> payload = new HashMap<>();
+        payload.put("uuid", UUID.randomUUID().toString());
+        payload.put("handle", "+33123456789");
+        payload.put("callerName", "Alice");
+        payload.put("X-Call-Id", UUID.randomUUID().toString());
+        payload.put("X-Caller-Avatar", "https://example.com/avatar/alice.png");
+        return payload;
+    }
+
+    /** CallKeepModule.displayIncomingCall once the PhoneAccount is known to be registered. */
+    private static void displayIncomingCall(FakeTelecom telecom, Map<String, String> payload) {
+        Bundle extras = new Bundle();
+        extras.putString(EXTRA_CALL_UUID, payload.get("uuid"));
+        extras.putString(EXTRA_CALLER_NAME, payload.get("callerName"));
+        extras.putString(EXTRA_CALL_NUMBER, payload.get("handle"));
+        extras.putByteArray(EXTRA_CALL_DATA, CallDataCodec.encode(payload));
+        telecom.addNewIncomingCall(extras);
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static final class Push {
+        final Map<String, String> payload;
+        final long arrivedAt;
+
+        Push(Map<String, String> payload, long arrivedAt) {
+            this.payload = payload;
+            this.arrivedAt = arrivedAt;
+        }
+    }
+
+    /**
+     * Telecom hop: wraps the extras like addNewIncomingCall, creates the connection inline and
+     * shows the incoming call UI, which makes the connection publish ACTION_INCOMING_CALL.
+     */
+    private static final class FakeTelecom {
+        private final StormConnectionService service;
+
+        FakeTelecom(StormConnectionService service) {
+            this.service = service;
+        }
+
+        void addNewIncomingCall(Bundle extras) {
+            Bundle request = new Bundle();
+            request.putBundle(EXTRA_INCOMING_CALL_EXTRAS, extras);
+            StormConnection connection = service.onCreateIncomingConnection(request);
+            service.publish(ACTION_INCOMING_CALL, connection.call);
+        }
+    }
+
+    /** Stands in for VoiceConnection: its CallInfo and state machine, without the Telecom side. */
+    private static final class StormConnection {
+        final CallInfo call;
+        final CallStateMachine stateMachine;
+        int capabilities;
+
+        StormConnection(CallInfo call) {
+            this.call = call;
+            this.stateMachine = new CallStateMachine(call.getUuid());
+        }
+    }
+
+    /** VoiceConnectionService.makeIncomingCall, minus the Telecom calls on the connection. */
+    private static final class StormConnectionService {
+        private static final int CAPABILITY_MUTE = 0x40;
+        private static final int CAPABILITY_SUPPORT_HOLD = 0x2;
+
+        private final Context context = new Context();
+        private final CallRegistry<StormConnection> registry = new CallRegistry<>();
+        private final ForegroundServiceLifecycle foregroundLifecycle = new ForegroundServiceLifecycle(new ForegroundServiceLifecycle.Host() {
+            @Override
+            public boolean enterForeground(int calls) {
+                return true;
+            }
+
+            @Override
+            public void exitForeground() {
+            }
+
+            @Override
+            public void onCallCountChanged(int calls) {
+            }
+        });
+        private final CallAdmission<StormConnection> admission = new CallAdmission<>(registry, foregroundLifecycle);
+        // What CallKeepSettings hands out, a fresh read only view per get()
+        private final Map<String, Object> settings = new HashMap<>();
+        private final ArrayDeque<String> ringing = new ArrayDeque<>();
+        private final int maxCalls;
+
+        StormConnectionService(int maxCalls) {
+            this.maxCalls = maxCalls;
+            settings.put("supportsHolding", true);
+            settings.put("selfManaged", true);
+            settings.put("handleSchema", "tel");
+        }
+
+        StormConnection onCreateIncomingConnection(Bundle request) {
+            Bundle extras = request.getBundle(EXTRA_INCOMING_CALL_EXTRAS);
+            CallInfo call = CallInfo.fromBundle(extras);
+            StormConnection connection = new StormConnection(call);
+            connection.capabilities = CAPABILITY_MUTE;
+            if (Boolean.TRUE.equals(CallAdmission.supportsHolding(new ConstraintsMap(settings)))) {
+                connection.capabilities |= CAPABILITY_SUPPORT_HOLD;
+            }
+            admission.admit(context, call, STATE_NEW, connection);
+            if (connection.stateMachine.ring()) {
+                // What setRinging() does through VoiceConnection.onStateChanged
+                registry.updateState(call.getUuid(), connection, STATE_RINGING);
+            }
+            ringing.addLast(call.getUuid());
+
+            // Calls are rejected as soon as too many ring, so the registry stays small
+            if (ringing.size() > maxCalls) {
+                endCall(ringing.removeFirst());
+            }
+            return connection;
+        }
+
+        /** VoiceConnection.close and VoiceConnectionService.deinitConnection. */
+        private void endCall(String uuid) {
+            StormConnection ended = registry.remove(uuid);
+            if (ended == null || !ended.stateMachine.disconnect()) {
+                return;
+            }
+            foregroundLifecycle.release(uuid, 0);
+            publish(ACTION_END_CALL, ended.call);
+        }
+
+        void publish(String action, CallInfo call) {
+            CallEventBus.publish(context, CallEvent.of(action, call));
+        }
+    }
+
+    /** Builds the Flutter arguments like CallKeepModule and records the time to ring. */
+    private static final class RingRecorder implements CallEventListener {
+        long arrivedAt;
+        long[] samples = new long[1 << 16];
+        int count;
+        long sink;
+
+        @Override
+        public void onIncomingCall(CallInfo call) {
+            sink += call.toEventArguments().size();
+            if (count == samples.length) {
+                samples = Arrays.copyOf(samples, count * 2);
+            }
+            samples[count++] = System.nanoTime() - arrivedAt;
+        }
+
+        @Override
+        public void onEndCall(CallInfo call) {
+            sink += call.getUuid().length();
+        }
+
+        @Override
+        public void onOngoingCall(CallInfo call) {
+        }
+
+        @Override
+        public void onFailedCall(CallInfo call) {
+        }
+
+        @Override
+        public void onAnswerCall(CallInfo call) {
+        }
+
+        @Override
+        public void onRejectCall(CallInfo call) {
+        }
+
+        @Override
+        public void onHoldChanged(CallInfo call, boolean hold) {
+        }
+
+        @Override
+        public void onDtmfTone(CallInfo call, String digits) {
+        }
+
+        @Override
+        public void onAudioStateChanged(CallInfo call, boolean muteChanged) {
+        }
+
+        @Override
+        public void onAudioSession(CallInfo call) {
+        }
+
+        @Override
+        public void onConferenceChanged(CallInfo call, String conferenceId) {
+        }
+
+        @Override
+        public void onCheckReachability() {
+        }
+    }
+
+    private static final class Result {
+        static final String HEADER = String.format("%10s %10s %8s %10s %10s %10s %12s",
+                "offered/s", "rings/s", "rings", "p50 us", "p99 us", "max us", "alloc/call B");
+
+        final int offered;
+        final int rings;
+        final double throughput;
+        final long p50Micros;
+        final long p99Micros;
+        final long maxMicros;
+        final long bytesPerCall;
+
+        Result(int offered, RingRecorder recorder, long elapsedNanos, long allocatedBytes) {
+            long[] sorted = Arrays.copyOf(recorder.samples, recorder.count);
+            Arrays.sort(sorted);
+            this.offered = offered;
+            this.rings = sorted.length;
+            this.throughput = rings * 1e9 / elapsedNanos;
+            this.p50Micros = percentileMicros(sorted, 0.50);
+            this.p99Micros = percentileMicros(sorted, 0.99);
+            this.maxMicros = rings == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(sorted[rings - 1]);
+            this.bytesPerCall = allocatedBytes < 0 || rings == 0 ? -1 : allocatedBytes / rings;
+        }
+
+        private static long percentileMicros(long[] sorted, double quantile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.min(sorted.length - 1, Math.ceil(quantile * sorted.length) - 1);
+            return TimeUnit.NANOSECONDS.toMicros(sorted[Math.max(0, index)]);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%10s %10d %8d %10d %10d %10d %12d",
+                    offered == 0 ? "max" : Integer.toString(offered), (long) throughput, rings,
+                    p50Micros, p99Micros, maxMicros, bytesPerCall);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package io.wazo.callkeep.benchmark;
+
+import android.os.Bundle;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.wazo.callkeep.CallInfo;
+
+/**
+ * Conversion of the call extras Bundle into the call model, done on every connection creation,
+ * failure and wakeup in VoiceConnectionService.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CallConversionBenchmark {
+    private Bundle extras;
+    private Bundle encodedExtras;
+    private CallInfo callInfo;
+
+    @Setup
+    public void setup() {
+        extras = Fixtures.callBundle();
+        encodedExtras = Fixtures.encodedCallBundle();
+        callInfo = CallInfo.fromMap(Fixtures.bundleToMap(extras));
+    }
+
+    @Benchmark
+    public HashMap<String, Object> bundleToMap() {
+        return Fixtures.bundleToMap(extras);
+    }
+
+    @Benchmark
+    public CallInfo bundleToCallInfo() {
+        return CallInfo.fromMap(Fixtures.bundleToMap(extras));
+    }
+
+    @Benchmark
+    public CallInfo typedBundleToCallInfo() {
+        return CallInfo.fromBundle(extras);
+    }
+
+    /** What an incoming call ends up doing: convert, then build the Flutter event arguments. */
+    @Benchmark
+    public Map<String, Object> bundleToEventArguments() {
+        return CallInfo.fromMap(Fixtures.bundleToMap(extras)).toEventArguments();
+    }
+
+    @Benchmark
+    public Map<String, Object> typedBundleToEventArguments() {
+        return CallInfo.fromBundle(extras).toEventArguments();
+    }
+
+    /** Same with additionalData as a CallDataCodec payload, decoded by toEventArguments. */
+    @Benchmark
+    public Map<String, Object> encodedBundleToEventArguments() {
+        return CallInfo.fromBundle(encodedExtras).toEventArguments();
+    }
+
+    @Benchmark
+    public CallInfo withMuted() {
+        return callInfo.withMuted(true);
+    }
+
+    @Benchmark
+    public HashMap<String, Object> legacyMapClone() {
+        HashMap<String, Object> data = callInfo.toMap();
+        data.put("DTMF", "1");
+        return data;
+    }
+}
@@ -0,0 +1,124 @@
+package io.wazo.callkeep.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.wazo.callkeep.utils.BinaryMapCodec;
+import io.wazo.callkeep.utils.CallDataCodec;
+
+/**
+ * Call additionalData transport: the Serializable HashMap createCallBundle used to put in the
+ * extras against the CallDataCodec byte[] payload.
+ *
+ * Setup prints the encoded sizes, round trips are covered by CallDataCodecTest. On a device a
+ * HashMap extra is parcelled as a map of Parcel strings (UTF-16, 4-byte aligned, a type tag per
+ * entry) rather than Java-serialized, so both sizes are reported next to the codec's.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CallDataBenchmark {
+    @Param({"4", "12", "48"})
+    public int headers;
+
+    private HashMap<String, String> data;
+    private byte[] serialized;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() throws Exception {
+        data = Fixtures.additionalData(headers, 64);
+        serialized = serialize(data);
+        encoded = CallDataCodec.encode(data);
+        System.out.println("\n" + headers + " headers: java serialization " + serialized.length
+                + " B, parcel map " + parcelMapSize(data)
+                + " B, codec " + encoded.length + " B (parcelled " + parcelBytesSize(encoded) + " B)");
+    }
+
+    @Benchmark
+    public byte[] serializableEncode() throws IOException {
+        return serialize(data);
+    }
+
+    @Benchmark
+    public Object serializableDecode() throws IOException, ClassNotFoundException {
+        return deserialize(serialized);
+    }
+
+    @Benchmark
+    public byte[] codecEncode() {
+        return CallDataCodec.encode(data);
+    }
+
+    @Benchmark
+    public HashMap<String, Object> codecDecode() throws BinaryMapCodec.FormatException {
+        return CallDataCodec.decode(encoded);
+    }
+
+    /** The generic path, taken by maps that are not string to string. */
+    @Benchmark
+    public byte[] binaryMapEncode() {
+        return BinaryMapCodec.encode(data);
+    }
+
+    private static byte[] serialize(HashMap<String, String> map) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(map);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Parcel.writeValue of a Map: VAL_MAP tag, size, then a VAL_STRING tag and string per key and value. */
+    private static int parcelMapSize(Map<String, String> map) {
+        int size = 8;
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            size += 4 + parcelStringSize(entry.getKey()) + 4 + parcelStringSize(entry.getValue());
+        }
+        return size;
+    }
+
+    /** Parcel.writeString: length, then UTF-16 chars and a null terminator padded to 4 bytes. */
+    private static int parcelStringSize(String s) {
+        return 4 + pad((s.length() + 1) * 2);
+    }
+
+    /** Parcel.writeValue of a byte[]: VAL_BYTEARRAY tag, length, then the bytes padded to 4. */
+    private static int parcelBytesSize(byte[] bytes) {
+        return 8 + pad(bytes.length);
+    }
+
+    private static int pad(int length) {
+        return (length + 3) & ~3;
+    }
+}
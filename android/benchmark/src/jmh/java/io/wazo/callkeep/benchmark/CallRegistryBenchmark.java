@@ -0,0 +1,89 @@
+package io.wazo.callkeep.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import io.wazo.callkeep.CallRegistry;
+
+/**
+ * CallRegistry lookups with 1, 10 and 100 registered calls, read from several threads like the
+ * platform thread and Telecom callbacks do.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class CallRegistryBenchmark {
+    // android.telecom.Connection.STATE_ACTIVE / STATE_HOLDING
+    private static final int STATE_ACTIVE = 4;
+    private static final int STATE_HOLDING = 5;
+
+    @Param({"1", "10", "100"})
+    public int calls;
+
+    private final CallRegistry<Object> registry = new CallRegistry<>();
+    private final List<String> uuids = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        registry.clear();
+        uuids.clear();
+        for (int i = 0; i < calls; i++) {
+            String uuid = UUID.randomUUID().toString();
+            uuids.add(uuid);
+            registry.put(uuid, "+3312345" + i, i % 2 == 0 ? STATE_ACTIVE : STATE_HOLDING, new Object());
+        }
+    }
+
+    @Benchmark
+    public Object get() {
+        return registry.get(uuids.get(ThreadLocalRandom.current().nextInt(calls)));
+    }
+
+    @Benchmark
+    public int countActive() {
+        return registry.countInState(STATE_ACTIVE);
+    }
+
+    @Benchmark
+    public void iterateHeld(Blackhole blackhole) {
+        for (Object call : registry.inState(STATE_HOLDING)) {
+            blackhole.consume(call);
+        }
+    }
+
+    @Benchmark
+    public void iterateAll(Blackhole blackhole) {
+        for (Object call : registry.calls()) {
+            blackhole.consume(call);
+        }
+    }
+
+    @Benchmark
+    public void toggleState() {
+        String uuid = uuids.get(ThreadLocalRandom.current().nextInt(calls));
+        Object call = registry.get(uuid);
+        registry.updateState(uuid, call, STATE_HOLDING);
+        registry.updateState(uuid, call, STATE_ACTIVE);
+    }
+}
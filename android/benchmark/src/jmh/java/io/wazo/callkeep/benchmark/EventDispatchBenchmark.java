@@ -0,0 +1,148 @@
+package io.wazo.callkeep.benchmark;
+
+import static io.wazo.callkeep.CallKeepConstants.ACTION_ANSWER_CALL;
+import static io.wazo.callkeep.CallKeepConstants.ACTION_DTMF_TONE;
+import static io.wazo.callkeep.CallKeepConstants.ACTION_HOLD_CALL;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import io.wazo.callkeep.CallEvent;
+import io.wazo.callkeep.CallEventListener;
+import io.wazo.callkeep.CallInfo;
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * The receiver side of an event: switch on the action and repackage the call into the Flutter
+ * arguments, either from the legacy Intent attribute map or from a typed CallEvent.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EventDispatchBenchmark {
+    @Param({ACTION_ANSWER_CALL, ACTION_HOLD_CALL, ACTION_DTMF_TONE})
+    public String action;
+
+    private HashMap<String, Object> attributes;
+    private CallEvent event;
+    private Blackhole blackhole;
+    private CallEventListener listener;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        attributes = Fixtures.attributeMap();
+        attributes.put("DTMF", "5");
+        CallInfo call = CallInfo.fromMap(attributes);
+        event = ACTION_DTMF_TONE.equals(action) ? CallEvent.dtmf(call, "5") : CallEvent.of(action, call);
+        listener = new FlutterArgumentsListener();
+    }
+
+    @Benchmark
+    public boolean fromAttributeMap() {
+        return CallEvent.fromAttributes(action, attributes).dispatchTo(listener);
+    }
+
+    @Benchmark
+    public boolean typedEvent() {
+        return event.dispatchTo(listener);
+    }
+
+    /** Mirrors CallKeepModule.VoiceEventListener without the MethodChannel. */
+    private final class FlutterArgumentsListener implements CallEventListener {
+        private ConstraintsMap uuidArguments(CallInfo call) {
+            ConstraintsMap args = new ConstraintsMap();
+            args.putString("callUUID", call.getUuid());
+            return args;
+        }
+
+        private void send(Object arguments) {
+            blackhole.consume(arguments);
+        }
+
+        @Override
+        public void onIncomingCall(CallInfo call) {
+            send(call.toEventArguments());
+        }
+
+        @Override
+        public void onOngoingCall(CallInfo call) {
+            send(call.toEventArguments());
+        }
+
+        @Override
+        public void onFailedCall(CallInfo call) {
+            send(call.toEventArguments());
+        }
+
+        @Override
+        public void onAnswerCall(CallInfo call) {
+            send(call.toEventArguments());
+        }
+
+        @Override
+        public void onRejectCall(CallInfo call) {
+            send(uuidArguments(call).toMap());
+        }
+
+        @Override
+        public void onEndCall(CallInfo call) {
+            send(uuidArguments(call).toMap());
+        }
+
+        @Override
+        public void onHoldChanged(CallInfo call, boolean hold) {
+            ConstraintsMap args = uuidArguments(call);
+            args.putBoolean("hold", hold);
+            send(args.toMap());
+        }
+
+        @Override
+        public void onDtmfTone(CallInfo call, String digits) {
+            ConstraintsMap args = uuidArguments(call);
+            args.putString("digits", digits);
+            send(args.toMap());
+        }
+
+        @Override
+        public void onAudioStateChanged(CallInfo call, boolean muteChanged) {
+            ConstraintsMap args = uuidArguments(call);
+            args.putInt("audioRoute", call.getAudioRoute());
+            args.putBoolean("muteChanged", muteChanged);
+            send(args.toMap());
+        }
+
+        @Override
+        public void onAudioSession(CallInfo call) {
+            send(call);
+        }
+
+        @Override
+        public void onConferenceChanged(CallInfo call, String conferenceId) {
+            ConstraintsMap args = uuidArguments(call);
+            args.putString("conferenceId", conferenceId);
+            send(args.toMap());
+        }
+
+        @Override
+        public void onCheckReachability() {
+            send(null);
+        }
+    }
+}
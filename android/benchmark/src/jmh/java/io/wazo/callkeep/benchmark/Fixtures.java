@@ -0,0 +1,106 @@
+package io.wazo.callkeep.benchmark;
+
+import static io.wazo.callkeep.CallKeepConstants.EXTRA_CALLER_NAME;
+import static io.wazo.callkeep.CallKeepConstants.EXTRA_CALL_DATA;
+import static io.wazo.callkeep.CallKeepConstants.EXTRA_CALL_NUMBER;
+import static io.wazo.callkeep.CallKeepConstants.EXTRA_CALL_UUID;
+
+import android.os.Bundle;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import io.wazo.callkeep.utils.CallDataCodec;
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * Payloads shaped like what the plugin sees in production.
+ */
+final class Fixtures {
+    private Fixtures() {
+    }
+
+    /** Settings as sent by FlutterCallkeep.setup on Android. */
+    static ConstraintsMap settings() {
+        ConstraintsMap foreground = new ConstraintsMap();
+        foreground.putString("channelId", "com.company.my");
+        foreground.putString("channelName", "Foreground service for my app");
+        foreground.putString("notificationTitle", "My app is running on background");
+        foreground.putString("notificationIcon", "mipmap/ic_notification_launcher");
+
+        ConstraintsMap settings = new ConstraintsMap();
+        settings.putString("alertTitle", "Permissions required");
+        settings.putString("alertDescription", "This application needs to access your phone accounts");
+        settings.putString("cancelButton", "Cancel");
+        settings.putString("okButton", "ok");
+        settings.putBoolean("supportsHolding", true);
+        settings.putBoolean("isSelfManaged", false);
+        settings.putInt("notificationId", 128);
+        settings.putDouble("ratio", 0.5);
+        settings.putMap("foregroundService", foreground.toMap());
+        return settings;
+    }
+
+    /** SIP style additional data, a dozen headers. */
+    static HashMap<String, String> additionalData(int headers, int valueLength) {
+        HashMap<String, String> data = new HashMap<>();
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < valueLength; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+        for (int i = 0; i < headers; i++) {
+            data.put("X-Header-" + i, value.toString());
+        }
+        return data;
+    }
+
+    /** Call extras as built by CallKeepModule.createCallBundle before CallDataCodec. */
+    static Bundle callBundle() {
+        Bundle extras = new Bundle();
+        extras.putString(EXTRA_CALL_UUID, UUID.randomUUID().toString());
+        extras.putString(EXTRA_CALLER_NAME, "Alice");
+        extras.putString(EXTRA_CALL_NUMBER, "+33123456789");
+        extras.putSerializable(EXTRA_CALL_DATA, additionalData(12, 64));
+        return extras;
+    }
+
+    /** Call extras as built by CallKeepModule.createCallBundle. */
+    static Bundle encodedCallBundle() {
+        Bundle extras = new Bundle();
+        extras.putString(EXTRA_CALL_UUID, UUID.randomUUID().toString());
+        extras.putString(EXTRA_CALLER_NAME, "Alice");
+        extras.putString(EXTRA_CALL_NUMBER, "+33123456789");
+        extras.putByteArray(EXTRA_CALL_DATA, CallDataCodec.encode(additionalData(12, 64)));
+        return extras;
+    }
+
+    /** The legacy EXTRA_CALL_ATTRIB layout carried by broadcast Intents. */
+    static HashMap<String, Object> attributeMap() {
+        HashMap<String, Object> map = new HashMap<>();
+        map.put(EXTRA_CALL_UUID, UUID.randomUUID().toString());
+        map.put(EXTRA_CALLER_NAME, "Alice");
+        map.put(EXTRA_CALL_NUMBER, "+33123456789");
+        map.put(EXTRA_CALL_DATA, new HashMap<String, Object>(additionalData(12, 64)));
+        return map;
+    }
+
+    /** Equivalent of VoiceConnectionService.bundleToMap before the typed conversion. */
+    @SuppressWarnings("deprecation")
+    static HashMap<String, Object> bundleToMap(Bundle extras) {
+        HashMap<String, Object> extrasMap = new HashMap<>();
+        for (String key : extras.keySet()) {
+            if (extras.get(key) != null) {
+                Object value = extras.get(key);
+                if (value != null) {
+                    extrasMap.put(key, value);
+                }
+            }
+        }
+        return extrasMap;
+    }
+
+    static Map<String, Object> copy(Map<String, Object> map) {
+        return new HashMap<>(map);
+    }
+}
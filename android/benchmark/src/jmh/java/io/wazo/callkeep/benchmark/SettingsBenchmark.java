@@ -0,0 +1,81 @@
+package io.wazo.callkeep.benchmark;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import io.wazo.callkeep.utils.BinaryMapCodec;
+import io.wazo.callkeep.utils.ConstraintsMap;
+import io.wazo.callkeep.utils.MapUtils;
+
+/**
+ * Settings persistence round trip, JSON (legacy storeSettings / fetchStoredSettings) against the
+ * binary SettingsStore encoding, and the ConstraintsMap accessors used on every settings read.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SettingsBenchmark {
+    private ConstraintsMap settings;
+    private String json;
+    private ConstraintsMap update;
+    private byte[] binary;
+
+    @Setup
+    public void setup() throws JSONException {
+        settings = Fixtures.settings();
+        json = MapUtils.convertMapToJson(settings).toString();
+        binary = BinaryMapCodec.encode(settings.toMap());
+        update = new ConstraintsMap();
+        update.putMap("foregroundService", settings.getMap("foregroundService").toMap());
+    }
+
+    @Benchmark
+    public String convertMapToJson() throws JSONException {
+        return MapUtils.convertMapToJson(settings).toString();
+    }
+
+    @Benchmark
+    public ConstraintsMap convertJsonToMap() throws JSONException {
+        return MapUtils.convertJsonToMap(new JSONObject(json));
+    }
+
+    @Benchmark
+    public byte[] binaryEncode() {
+        return BinaryMapCodec.encode(settings.toMap());
+    }
+
+    @Benchmark
+    public ConstraintsMap binaryDecode() throws BinaryMapCodec.FormatException {
+        return new ConstraintsMap(BinaryMapCodec.decode(binary));
+    }
+
+    @Benchmark
+    public void getType(Blackhole blackhole) {
+        for (String key : settings.toMap().keySet()) {
+            blackhole.consume(settings.getType(key));
+        }
+    }
+
+    @Benchmark
+    public ConstraintsMap merge() {
+        ConstraintsMap copy = new ConstraintsMap(Fixtures.copy(settings.toMap()));
+        copy.merge(update.toMap());
+        return copy;
+    }
+}
@@ -0,0 +1,14 @@
+package android.content;
+
+import java.io.File;
+
+/** JVM stand-in for android.content.Context: its own application context, caching in java.io.tmpdir. */
+public class Context {
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    public File getCacheDir() {
+        return new File(System.getProperty("java.io.tmpdir"));
+    }
+}
@@ -0,0 +1,73 @@
+package android.os;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * JVM stand-in for android.os.Bundle: an eagerly unparcelled map with the typed accessors the
+ * plugin uses. Good enough to compare conversion strategies, not to measure parcelling.
+ */
+public final class Bundle {
+    private final HashMap<String, Object> map = new HashMap<>();
+
+    public Bundle() {
+    }
+
+    public Bundle(Bundle other) {
+        map.putAll(other.map);
+    }
+
+    public Set<String> keySet() {
+        return map.keySet();
+    }
+
+    public boolean containsKey(String key) {
+        return map.containsKey(key);
+    }
+
+    @Deprecated
+    public Object get(String key) {
+        return map.get(key);
+    }
+
+    public String getString(String key) {
+        Object value = map.get(key);
+        return value instanceof String ? (String) value : null;
+    }
+
+    public Serializable getSerializable(String key) {
+        Object value = map.get(key);
+        return value instanceof Serializable ? (Serializable) value : null;
+    }
+
+    public Bundle getBundle(String key) {
+        Object value = map.get(key);
+        return value instanceof Bundle ? (Bundle) value : null;
+    }
+
+    public byte[] getByteArray(String key) {
+        Object value = map.get(key);
+        return value instanceof byte[] ? (byte[]) value : null;
+    }
+
+    public void putString(String key, String value) {
+        map.put(key, value);
+    }
+
+    public void putSerializable(String key, Serializable value) {
+        map.put(key, value);
+    }
+
+    public void putBundle(String key, Bundle value) {
+        map.put(key, value);
+    }
+
+    public void putByteArray(String key, byte[] value) {
+        map.put(key, value);
+    }
+
+    public int size() {
+        return map.size();
+    }
+}
@@ -0,0 +1,26 @@
+package android.os;
+
+/** JVM stand-in for android.os.Handler, queueing on the stand-in {@link Looper}. */
+public class Handler {
+    private final Looper looper;
+
+    public Handler(Looper looper) {
+        this.looper = looper;
+    }
+
+    public final boolean post(Runnable r) {
+        looper.enqueue(r);
+        return true;
+    }
+
+    /** Queued like {@link #post}, tests advance {@link SystemClock} and run it themselves. */
+    public final boolean postDelayed(Runnable r, long delayMillis) {
+        return post(r);
+    }
+
+    public final void removeCallbacks(Runnable r) {
+        while (looper.remove(r)) {
+            // every pending instance
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package android.os;
+
+import java.util.ArrayDeque;
+
+/**
+ * JVM stand-in for android.os.Looper. The thread that called {@link #prepareMainLooper()} is the
+ * main thread; nothing loops on its own, tests run the posted messages with {@link #runPending()}.
+ */
+public final class Looper {
+    private static final Looper main = new Looper();
+    private static volatile Thread mainThread;
+
+    private final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+
+    private Looper() {
+    }
+
+    public static void prepareMainLooper() {
+        mainThread = Thread.currentThread();
+    }
+
+    public static Looper getMainLooper() {
+        return main;
+    }
+
+    public static Looper myLooper() {
+        return Thread.currentThread() == mainThread ? main : null;
+    }
+
+    synchronized void enqueue(Runnable r) {
+        queue.add(r);
+    }
+
+    synchronized boolean remove(Runnable r) {
+        return queue.remove(r);
+    }
+
+    /** Runs the messages posted so far and those they post, in order. */
+    public void runPending() {
+        Runnable next;
+        while ((next = poll()) != null) {
+            next.run();
+        }
+    }
+
+    /** @return the number of messages waiting to run */
+    public synchronized int pendingCount() {
+        return queue.size();
+    }
+
+    private synchronized Runnable poll() {
+        return queue.poll();
+    }
+}
@@ -0,0 +1,18 @@
+package android.os;
+
+/** JVM stand-in for android.os.SystemClock, a clock that only moves when tests advance it. */
+public final class SystemClock {
+    private static long elapsedRealtime = 0;
+
+    private SystemClock() {
+    }
+
+    public static synchronized long elapsedRealtime() {
+        return elapsedRealtime;
+    }
+
+    /** Stand-in only: moves the clock forward. */
+    public static synchronized void advance(long millis) {
+        elapsedRealtime += millis;
+    }
+}
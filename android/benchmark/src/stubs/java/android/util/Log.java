@@ -0,0 +1,36 @@
+package android.util;
+
+/**
+ * JVM stand-in for android.util.Log, printing to stderr. Debug messages are dropped unless the
+ * log.debug system property is set, so they don't dominate the push storm numbers.
+ */
+public final class Log {
+    private static final boolean DEBUG = Boolean.getBoolean("log.debug");
+
+    private Log() {
+    }
+
+    public static int d(String tag, String msg) {
+        if (!DEBUG) {
+            return 0;
+        }
+        return println("D", tag, msg, null);
+    }
+
+    public static int w(String tag, String msg) {
+        return println("W", tag, msg, null);
+    }
+
+    public static int e(String tag, String msg) {
+        return println("E", tag, msg, null);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return println("E", tag, msg, tr);
+    }
+
+    private static int println(String level, String tag, String msg, Throwable tr) {
+        System.err.println(level + "/" + tag + ": " + msg + (tr == null ? "" : ": " + tr));
+        return 0;
+    }
+}
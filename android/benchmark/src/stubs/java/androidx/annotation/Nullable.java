@@ -0,0 +1,5 @@
+package androidx.annotation;
+
+/** JVM stand-in for the AndroidX annotation. */
+public @interface Nullable {
+}
@@ -0,0 +1,12 @@
+package io.flutter.plugin.common;
+
+/** JVM stand-in for io.flutter.plugin.common.MethodChannel, only its Result callback. */
+public class MethodChannel {
+    public interface Result {
+        void success(Object result);
+
+        void error(String errorCode, String errorMessage, Object errorDetails);
+
+        void notImplemented();
+    }
+}
@@ -0,0 +1,179 @@
+package io.wazo.callkeep;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class CallEventBusTest {
+    private final Context context = new Context();
+    private final Looper mainLooper = Looper.getMainLooper();
+    private final RecordingListener first = new RecordingListener();
+    private final RecordingListener second = new RecordingListener();
+
+    @Before
+    public void setUp() {
+        Looper.prepareMainLooper();
+    }
+
+    @After
+    public void tearDown() {
+        CallEventBus.unregister(first);
+        CallEventBus.unregister(second);
+        mainLooper.runPending();
+        RecordingListener sink = new RecordingListener();
+        CallEventBus.registerAndDrain(sink);
+        CallEventBus.acknowledge(sink);
+        CallEventBus.unregister(sink);
+    }
+
+    @Test
+    public void eventPublishedBeforeTheListenerIsDeliveredOnce() {
+        CallEvent answer = answer("a");
+        // setup() posts the listener registration to the main thread: publish before it runs
+        CallEventBus.publish(context, answer);
+        assertEquals("nothing but the journal may carry the event", 0, mainLooper.pendingCount());
+
+        List<CallEvent> drained = CallEventBus.registerAndDrain(first);
+        mainLooper.runPending();
+
+        assertEquals(1, drained.size());
+        assertSame(answer, drained.get(0));
+        assertEquals(Collections.emptyList(), first.received);
+    }
+
+    @Test
+    public void eventPublishedAfterRegistrationGoesToTheListener() throws InterruptedException {
+        assertTrue(CallEventBus.registerAndDrain(first).isEmpty());
+        CallEventBus.publish(context, answer("a"));
+        Thread worker = new Thread(() -> CallEventBus.publish(context, answer("b")));
+        worker.start();
+        worker.join();
+        mainLooper.runPending();
+
+        assertEquals(Arrays.asList("answer a", "answer b"), first.received);
+        assertTrue(CallEventBus.registerAndDrain(second).isEmpty());
+    }
+
+    @Test
+    public void unacknowledgedEventsGoBackToTheJournal() {
+        CallEventBus.publish(context, answer("a"));
+        assertEquals(1, CallEventBus.registerAndDrain(first).size());
+        CallEventBus.unregister(first);
+
+        List<CallEvent> drained = CallEventBus.registerAndDrain(second);
+        assertEquals(1, drained.size());
+        assertEquals("a", drained.get(0).getCall().getUuid());
+    }
+
+    @Test
+    public void acknowledgedEventsAreDropped() {
+        CallEventBus.publish(context, answer("a"));
+        assertEquals(1, CallEventBus.registerAndDrain(first).size());
+        CallEventBus.acknowledge(first);
+        CallEventBus.unregister(first);
+
+        assertTrue(CallEventBus.registerAndDrain(second).isEmpty());
+    }
+
+    @Test
+    public void unacknowledgedEventsGoToTheRemainingListener() {
+        CallEventBus.publish(context, answer("a"));
+        assertEquals(1, CallEventBus.registerAndDrain(first).size());
+        assertTrue(CallEventBus.registerAndDrain(second).isEmpty());
+        CallEventBus.unregister(first);
+        mainLooper.runPending();
+
+        assertEquals(Arrays.asList("answer a"), second.received);
+    }
+
+    @Test
+    public void audioStateIsOneEventThroughTheAttributeMap() {
+        CallInfo call = new CallInfo("a", "100", "Bob", null).withAudioState(true, 8, 15);
+        CallEvent event = CallEvent.audioState(call, true);
+        CallEvent restored = CallEvent.fromAttributes(event.getAction(), event.toAttributeMap());
+
+        assertTrue(restored.dispatchTo(first));
+        assertEquals(Arrays.asList("audio a route 8 muted true (changed)"), first.received);
+    }
+
+    private static CallEvent answer(String uuid) {
+        return CallEvent.of(CallKeepConstants.ACTION_ANSWER_CALL, new CallInfo(uuid, "100", "Bob", null));
+    }
+
+    private static final class RecordingListener implements CallEventListener {
+        final List<String> received = new ArrayList<>();
+
+        @Override
+        public void onIncomingCall(CallInfo call) {
+            received.add("incoming " + call.getUuid());
+        }
+
+        @Override
+        public void onOngoingCall(CallInfo call) {
+            received.add("ongoing " + call.getUuid());
+        }
+
+        @Override
+        public void onFailedCall(CallInfo call) {
+            received.add("failed " + call.getUuid());
+        }
+
+        @Override
+        public void onAnswerCall(CallInfo call) {
+            received.add("answer " + call.getUuid());
+        }
+
+        @Override
+        public void onRejectCall(CallInfo call) {
+            received.add("reject " + call.getUuid());
+        }
+
+        @Override
+        public void onEndCall(CallInfo call) {
+            received.add("end " + call.getUuid());
+        }
+
+        @Override
+        public void onHoldChanged(CallInfo call, boolean hold) {
+            received.add("hold " + call.getUuid());
+        }
+
+        @Override
+        public void onDtmfTone(CallInfo call, String digits) {
+            received.add("dtmf " + call.getUuid());
+        }
+
+        @Override
+        public void onAudioStateChanged(CallInfo call, boolean muteChanged) {
+            received.add("audio " + call.getUuid() + " route " + call.getAudioRoute() + " muted " + call.getMuted()
+                    + (muteChanged ? " (changed)" : ""));
+        }
+
+        @Override
+        public void onAudioSession(CallInfo call) {
+            received.add("session " + call.getUuid());
+        }
+
+        @Override
+        public void onConferenceChanged(CallInfo call, String conferenceId) {
+            received.add("conference " + call.getUuid());
+        }
+
+        @Override
+        public void onCheckReachability() {
+            received.add("reachability");
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package io.wazo.callkeep;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+public class CallRegistryTest {
+    // android.telecom.Connection.STATE_RINGING / STATE_ACTIVE / STATE_HOLDING
+    private static final int STATE_RINGING = 2;
+    private static final int STATE_ACTIVE = 4;
+    private static final int STATE_HOLDING = 5;
+
+    private final CallRegistry<String> registry = new CallRegistry<>();
+
+    @Test
+    public void indexesByStateAndHandle() {
+        registry.put("a", "100", STATE_ACTIVE, "call a");
+        registry.put("b", "200", STATE_RINGING, "call b");
+        registry.put("c", "100", STATE_HOLDING, "call c");
+
+        assertEquals(Collections.singletonList("call a"), sorted(registry.inState(STATE_ACTIVE)));
+        assertEquals(1, registry.countInState(STATE_RINGING));
+        assertEquals(Arrays.asList("call a", "call c"), sorted(registry.withHandle("100")));
+    }
+
+    @Test
+    public void followsStateAndHandleChanges() {
+        registry.put("a", "100", STATE_RINGING, "call a");
+        registry.updateState("a", "call a", STATE_ACTIVE);
+        registry.updateHandle("a", "call a", "300");
+
+        assertEquals(0, registry.countInState(STATE_RINGING));
+        assertEquals(Collections.singletonList("call a"), sorted(registry.inState(STATE_ACTIVE)));
+        assertTrue(registry.withHandle("100").isEmpty());
+        assertEquals(Collections.singletonList("call a"), sorted(registry.withHandle("300")));
+    }
+
+    @Test
+    public void ignoresUpdatesForReplacedCalls() {
+        registry.put("a", "100", STATE_RINGING, "first");
+        registry.put("a", "100", STATE_RINGING, "second");
+        registry.updateState("a", "first", STATE_ACTIVE);
+
+        assertEquals(0, registry.countInState(STATE_ACTIVE));
+        assertFalse(registry.remove("a", "first"));
+        assertEquals(Collections.singletonList("second"), sorted(registry.withHandle("100")));
+    }
+
+    @Test
+    public void removeUnindexes() {
+        registry.put("a", "100", STATE_ACTIVE, "call a");
+        registry.remove("a");
+
+        assertTrue(registry.isEmpty());
+        assertEquals(0, registry.countInState(STATE_ACTIVE));
+        assertTrue(registry.withHandle("100").isEmpty());
+    }
+
+    private static List<String> sorted(Collection<String> calls) {
+        List<String> list = new ArrayList<>(calls);
+        Collections.sort(list);
+        return list;
+    }
+}
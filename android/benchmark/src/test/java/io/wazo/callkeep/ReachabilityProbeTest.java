@@ -0,0 +1,69 @@
+package io.wazo.callkeep;
+
+import static org.junit.Assert.assertEquals;
+
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReachabilityProbeTest {
+    private static final long BUDGET_MS = 2000;
+
+    private final Looper mainLooper = Looper.getMainLooper();
+    private final ReachabilityProbe probe = new ReachabilityProbe();
+
+    @Before
+    public void setUp() {
+        Looper.prepareMainLooper();
+        mainLooper.runPending();
+    }
+
+    /** Runs an attempt whose answer takes latencyMs, letting its timeout fire first if shorter. */
+    private void attempt(long latencyMs) {
+        long timeout = probe.timeoutFor(BUDGET_MS);
+        probe.start(BUDGET_MS, null);
+        if (latencyMs >= timeout) {
+            SystemClock.advance(timeout);
+            mainLooper.runPending();
+            SystemClock.advance(latencyMs - timeout);
+        } else {
+            SystemClock.advance(latencyMs);
+        }
+        probe.onReachable();
+    }
+
+    @Test
+    public void firstAttemptWaitsForTheBudget() {
+        assertEquals(BUDGET_MS, probe.timeoutFor(BUDGET_MS));
+    }
+
+    @Test
+    public void fastAnswersShortenTheTimeout() {
+        attempt(100);
+        assertEquals(350, probe.timeoutFor(BUDGET_MS));
+    }
+
+    @Test
+    public void unansweredTimeoutRaisesTheNextTimeout() {
+        attempt(100);
+        probe.start(BUDGET_MS, null);
+        SystemClock.advance(350);
+        mainLooper.runPending();
+        // Counted as an answer at 350ms: 0.3 * 350 + 0.7 * 100
+        assertEquals(500, probe.timeoutFor(BUDGET_MS));
+    }
+
+    @Test
+    public void lateAnswersStayInTheEstimate() {
+        attempt(100);
+        attempt(1200);
+        // 0.3 * 1200 + 0.7 * 100, not the guess made at the timeout
+        assertEquals(1010, probe.timeoutFor(BUDGET_MS));
+        attempt(1200);
+        attempt(100);
+        // 0.3 * 100 + 0.7 * (0.3 * 1200 + 0.7 * 430), instead of 100 if slow answers were dropped
+        assertEquals(1135, probe.timeoutFor(BUDGET_MS));
+    }
+}
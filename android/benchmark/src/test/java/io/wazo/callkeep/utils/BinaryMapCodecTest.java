@@ -0,0 +1,81 @@
+package io.wazo.callkeep.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class BinaryMapCodecTest {
+    // Tags of BinaryMapCodec
+    private static final byte BYTES = 7;
+    private static final byte MAP = 8;
+    private static final byte LIST = 9;
+
+    @Test
+    public void roundTripsEveryType() throws Exception {
+        HashMap<String, Object> nested = new HashMap<>();
+        nested.put("channelId", "com.company.my");
+        HashMap<String, Object> map = new HashMap<>();
+        map.put("null", null);
+        map.put("bool", true);
+        map.put("int", 128);
+        map.put("long", 1L << 40);
+        map.put("double", 0.5);
+        map.put("string", "Zo\u00eb \ud83d\udcde");
+        map.put("list", new ArrayList<Object>(Arrays.asList("a", 1, false)));
+        map.put("map", nested);
+        map.put("emptyList", new ArrayList<>());
+        map.put("emptyMap", new HashMap<>());
+
+        assertEquals(map, BinaryMapCodec.decode(BinaryMapCodec.encode(map)));
+    }
+
+    @Test
+    public void roundTripsBytes() throws Exception {
+        HashMap<String, Object> map = new HashMap<>();
+        map.put("bytes", new byte[]{1, 2, 3});
+
+        assertArrayEquals(new byte[]{1, 2, 3}, (byte[]) BinaryMapCodec.decode(BinaryMapCodec.encode(map)).get("bytes"));
+    }
+
+    @Test
+    public void rejectsTruncatedPayloads() {
+        HashMap<String, Object> map = new HashMap<>();
+        map.put("alertTitle", "Permissions required");
+        map.put("notificationId", 128);
+        byte[] encoded = BinaryMapCodec.encode(map);
+        for (int length = 0; length < encoded.length; length++) {
+            assertRejected(Arrays.copyOf(encoded, length));
+        }
+    }
+
+    @Test
+    public void rejectsMapCountLargerThanPayload() {
+        assertRejected(new byte[]{MAP, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x7f});
+    }
+
+    @Test
+    public void rejectsListCountLargerThanPayload() {
+        assertRejected(new byte[]{MAP, 1, 1, 'l', LIST, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x7f});
+    }
+
+    @Test
+    public void rejectsBytesLengthLargerThanPayload() {
+        assertRejected(new byte[]{MAP, 1, 1, 'b', BYTES, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x7f});
+    }
+
+    private static void assertRejected(byte[] payload) {
+        try {
+            Map<String, Object> decoded = BinaryMapCodec.decode(payload);
+            fail("Decoded " + decoded + " from " + Arrays.toString(payload));
+        } catch (BinaryMapCodec.FormatException expected) {
+            // corrupt payloads surface as FormatException, never as an allocation failure
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package io.wazo.callkeep.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class CallDataCodecTest {
+    @Test
+    public void roundTripsStringMaps() throws Exception {
+        assertRoundTrip(new HashMap<String, Object>());
+        assertRoundTrip(headers(12, 64));
+        assertRoundTrip(headers(3, 300));
+    }
+
+    @Test
+    public void roundTripsUnicode() throws Exception {
+        HashMap<String, Object> unicode = new HashMap<>();
+        unicode.put("From", "\"Zo\u00eb \u00dcnal\" <sip:zoe@example.com>");
+        unicode.put("Subject", "\u547c\u53eb \ud83d\udcde");
+        unicode.put("", "");
+        assertRoundTrip(unicode);
+    }
+
+    @Test
+    public void roundTripsOtherMapsThroughBinaryMapCodec() throws Exception {
+        HashMap<String, Object> nested = new HashMap<>();
+        nested.put("id", 42L);
+        HashMap<String, Object> mixed = new HashMap<>();
+        mixed.put("priority", 3);
+        mixed.put("video", true);
+        mixed.put("missing", null);
+        mixed.put("tags", new ArrayList<>(Arrays.asList("a", "b")));
+        mixed.put("nested", nested);
+        assertRoundTrip(mixed);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOversizedData() {
+        CallDataCodec.encode(headers(64, 1024));
+    }
+
+    @Test
+    public void rejectsTruncatedPayloads() {
+        byte[] encoded = CallDataCodec.encode(headers(12, 64));
+        for (int length = 0; length < encoded.length; length++) {
+            try {
+                CallDataCodec.decode(Arrays.copyOf(encoded, length));
+                fail("Decoded " + length + " of " + encoded.length + " bytes");
+            } catch (BinaryMapCodec.FormatException expected) {
+                // rejected
+            }
+        }
+    }
+
+    @Test
+    public void rejectsTrailingBytes() {
+        byte[] encoded = CallDataCodec.encode(headers(2, 8));
+        try {
+            CallDataCodec.decode(Arrays.copyOf(encoded, encoded.length + 1));
+            fail("Trailing byte accepted");
+        } catch (BinaryMapCodec.FormatException expected) {
+            // rejected
+        }
+    }
+
+    @Test
+    public void rejectsEntryCountLargerThanPayload() {
+        // STRING_MAP format, then 0x7fffffff entries and nothing else
+        byte[] payload = {1, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07};
+        try {
+            CallDataCodec.decode(payload);
+            fail("Oversized entry count accepted");
+        } catch (BinaryMapCodec.FormatException expected) {
+            // rejected before allocating the map
+            assertTrue(expected.getMessage(), expected.getMessage().startsWith("Entry count"));
+        }
+    }
+
+    private static void assertRoundTrip(Map<String, Object> map) throws BinaryMapCodec.FormatException {
+        assertEquals(map, CallDataCodec.decode(CallDataCodec.encode(map)));
+    }
+
+    private static HashMap<String, Object> headers(int count, int valueLength) {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < valueLength; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+        HashMap<String, Object> data = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            data.put("X-Header-" + i, value.toString());
+        }
+        return data;
+    }
+}
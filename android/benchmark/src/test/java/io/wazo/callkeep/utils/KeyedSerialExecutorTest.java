@@ -0,0 +1,94 @@
+package io.wazo.callkeep.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+public class KeyedSerialExecutorTest {
+    /** Runs submitted tasks only when asked, in submission order. */
+    private static final class ManualExecutor implements Executor {
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    private final ManualExecutor pool = new ManualExecutor();
+    private final KeyedSerialExecutor executor = new KeyedSerialExecutor(pool);
+    private final List<String> ran = new ArrayList<>();
+
+    private Runnable record(final String name) {
+        return () -> ran.add(name);
+    }
+
+    @Test
+    public void runsTasksOfAKeyInOrder() {
+        executor.execute("a", record("a1"));
+        executor.execute("a", record("a2"));
+        executor.execute("a", record("a3"));
+        assertEquals(1, pool.tasks.size());
+        pool.runAll();
+        assertEquals(Arrays.asList("a1", "a2", "a3"), ran);
+    }
+
+    @Test
+    public void barrierWaitsForEarlierTasks() {
+        executor.execute("a", record("answer a"));
+        executor.execute("b", record("answer b"));
+        executor.executeBarrier(record("endAll"));
+        assertEquals(2, pool.tasks.size());
+
+        pool.tasks.poll().run();
+        assertEquals(Arrays.asList("answer a"), ran);
+        pool.runAll();
+        assertEquals(Arrays.asList("answer a", "answer b", "endAll"), ran);
+    }
+
+    @Test
+    public void laterTasksWaitForTheBarrier() {
+        executor.execute("a", record("answer a"));
+        executor.executeBarrier(record("endAll"));
+        executor.execute("a", record("mute a"));
+        executor.execute("b", record("answer b"));
+        pool.runAll();
+        assertEquals(Arrays.asList("answer a", "endAll", "mute a", "answer b"), ran);
+    }
+
+    @Test
+    public void barriersRunOneAtATime() {
+        executor.executeBarrier(record("setup"));
+        executor.executeBarrier(record("setAvailable"));
+        executor.execute("a", record("answer a"));
+        executor.executeBarrier(record("endAll"));
+        assertEquals(1, pool.tasks.size());
+        pool.runAll();
+        assertEquals(Arrays.asList("setup", "setAvailable", "answer a", "endAll"), ran);
+    }
+
+    @Test
+    public void failingBarrierReleasesLaterTasks() {
+        executor.executeBarrier(() -> {
+            throw new IllegalStateException("boom");
+        });
+        executor.execute("a", record("answer a"));
+        pool.runAll();
+        assertEquals(Arrays.asList("answer a"), ran);
+        assertTrue(pool.tasks.isEmpty());
+    }
+}
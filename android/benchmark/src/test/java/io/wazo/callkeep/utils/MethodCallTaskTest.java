@@ -0,0 +1,77 @@
+package io.wazo.callkeep.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.flutter.plugin.common.MethodChannel;
+
+public class MethodCallTaskTest {
+    /** Records every reply as "kind:detail". */
+    private static final class RecordingResult implements MethodChannel.Result {
+        final List<String> replies = new ArrayList<>();
+
+        @Override
+        public void success(Object result) {
+            replies.add("success:" + result);
+        }
+
+        @Override
+        public void error(String errorCode, String errorMessage, Object errorDetails) {
+            replies.add("error:" + errorCode + ":" + errorMessage);
+        }
+
+        @Override
+        public void notImplemented() {
+            replies.add("notImplemented");
+        }
+    }
+
+    private final RecordingResult result = new RecordingResult();
+
+    @Test
+    public void handledCallLeavesTheReplyToTheHandler() {
+        new MethodCallTask("answerIncomingCall", () -> {
+            result.success(null);
+            return true;
+        }, result).run();
+        assertEquals(Arrays.asList("success:null"), result.replies);
+    }
+
+    @Test
+    public void unknownMethodAnswersNotImplemented() {
+        new MethodCallTask("nope", () -> false, result).run();
+        assertEquals(Arrays.asList("notImplemented"), result.replies);
+    }
+
+    @Test
+    public void throwingHandlerAnswersWithAnError() {
+        new MethodCallTask("sendDTMF", () -> {
+            throw new StringIndexOutOfBoundsException("index 0");
+        }, result).run();
+        assertEquals(Arrays.asList("error:sendDTMF:index 0"), result.replies);
+    }
+
+    @Test
+    public void throwingTaskOnTheExecutorStillCompletesItsResult() {
+        final ArrayDeque<Runnable> pool = new ArrayDeque<>();
+        KeyedSerialExecutor executor = new KeyedSerialExecutor(pool::add);
+        executor.execute("a", new MethodCallTask("sendDTMF", () -> {
+            throw new IllegalStateException("no connection");
+        }, result));
+        executor.executeBarrier(new MethodCallTask("hasPermissions", () -> {
+            throw new NullPointerException("currentActivity");
+        }, result));
+        Runnable task;
+        while ((task = pool.poll()) != null) {
+            task.run();
+        }
+        assertEquals(Arrays.asList("error:sendDTMF:no connection", "error:hasPermissions:currentActivity"),
+                result.replies);
+    }
+}
@@ -4,6 +4,7 @@ import android.app.Activity;
 import android.content.Context;
 import androidx.annotation.NonNull;
 
+import io.flutter.embedding.engine.FlutterEngine;
 import io.flutter.embedding.engine.plugins.FlutterPlugin;
 import io.flutter.embedding.engine.plugins.activity.ActivityAware;
 import io.flutter.embedding.engine.plugins.activity.ActivityPluginBinding;
@@ -12,7 +13,11 @@ import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.MethodChannel.MethodCallHandler;
 import io.flutter.plugin.common.MethodChannel.Result;
+import io.flutter.plugin.common.StandardMethodCodec;
+import io.wazo.callkeep.AppForegroundTracker;
+import io.wazo.callkeep.CallKeepBackgroundMessagingService;
 import io.wazo.callkeep.CallKeepModule;
+import io.wazo.callkeep.utils.MainThreadResult;
 
 /** FlutterCallkeepPlugin */
 /// The MethodChannel that will the communication between Flutter and native Android
@@ -21,13 +26,16 @@ import io.wazo.callkeep.CallKeepModule;
 /// when the Flutter Engine is detached from the Activity
 public class FlutterCallkeepPlugin implements FlutterPlugin, MethodCallHandler, ActivityAware {
   private MethodChannel channel;
-  private CallKeepModule callKeep;
+  private volatile CallKeepModule callKeep;
   private Activity activity;
 
   private void startListening(final Context context, BinaryMessenger messenger) {
-    channel = new MethodChannel(messenger, "FlutterCallKeep.Method");
+    // Commands are handled off the main thread, CallKeepModule posts the results back
+    channel = new MethodChannel(messenger, "FlutterCallKeep.Method", StandardMethodCodec.INSTANCE,
+        messenger.makeBackgroundTaskQueue());
     channel.setMethodCallHandler(this);
     callKeep = new CallKeepModule(context, messenger);
+    AppForegroundTracker.install(context);
   }
 
   private void stopListening() {
@@ -48,8 +56,15 @@ public class FlutterCallkeepPlugin implements FlutterPlugin, MethodCallHandler,
 
   @Override
   public void onMethodCall(@NonNull MethodCall call, @NonNull Result result) {
-    if (!callKeep.handleMethodCall(call, result)) {
-      result.notImplemented();
+    CallKeepModule module = callKeep;
+    if (module == null || !module.handleMethodCall(call, result)) {
+      new MainThreadResult(result).notImplemented();
+    }
+  }
+
+  private void handOffEvents() {
+    if (callKeep != null) {
+      callKeep.handOffEvents();
     }
   }
 
@@ -60,7 +75,18 @@ public class FlutterCallkeepPlugin implements FlutterPlugin, MethodCallHandler,
 
   @Override
   public void onAttachedToActivity(@NonNull ActivityPluginBinding binding) {
+    // The app's own engine takes over the call events, the headless one only lives on while a
+    // call may still need its isolate
+    FlutterEngine background = CallKeepBackgroundMessagingService.getEngine();
+    if (background != null) {
+      FlutterPlugin plugin = background.getPlugins().get(FlutterCallkeepPlugin.class);
+      if (plugin != this && plugin instanceof FlutterCallkeepPlugin) {
+        ((FlutterCallkeepPlugin) plugin).handOffEvents();
+      }
+    }
+    CallKeepBackgroundMessagingService.destroyEngineWhenIdle();
     activity = binding.getActivity();
+    AppForegroundTracker.onActivityAttached(activity);
     if (callKeep != null) {
       callKeep.setActivity(activity);
     }
@@ -76,6 +102,7 @@ public class FlutterCallkeepPlugin implements FlutterPlugin, MethodCallHandler,
   @Override
   public void onReattachedToActivityForConfigChanges(@NonNull ActivityPluginBinding binding) {
     activity = binding.getActivity();
+    AppForegroundTracker.onActivityAttached(activity);
     if (callKeep != null) {
       callKeep.setActivity(activity);
     }
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package io.wazo.callkeep;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.Context;
+import android.os.Bundle;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Knows whether the app has live activities without asking the system.
+ *
+ * It is driven by Application.ActivityLifecycleCallbacks. The plugin's ActivityAware hooks
+ * report the Flutter activity too, because the plugin usually gets attached while that activity
+ * is already being created, after its onActivityCreated callback went out. Activities are held
+ * weakly, so a missed onActivityDestroyed cannot leak them.
+ */
+public final class AppForegroundTracker {
+    private static final Set<Activity> created = Collections.newSetFromMap(new WeakHashMap<Activity, Boolean>());
+    private static boolean isInstalled = false;
+
+    private AppForegroundTracker() {
+    }
+
+    public static synchronized void install(@NonNull Context context) {
+        if (isInstalled) {
+            return;
+        }
+        Context appContext = context.getApplicationContext();
+        if (!(appContext instanceof Application)) {
+            return;
+        }
+        ((Application) appContext).registerActivityLifecycleCallbacks(new Callbacks());
+        isInstalled = true;
+    }
+
+    /**
+     * Called from the ActivityAware hooks of the plugin.
+     */
+    public static synchronized void onActivityAttached(@Nullable Activity activity) {
+        if (activity != null && !activity.isFinishing()) {
+            created.add(activity);
+        }
+    }
+
+    /**
+     * @return true while at least one activity of the app exists, visible or not
+     */
+    public static synchronized boolean isRunning() {
+        return !created.isEmpty();
+    }
+
+    private static final class Callbacks implements Application.ActivityLifecycleCallbacks {
+        @Override
+        public void onActivityCreated(@NonNull Activity activity, @Nullable Bundle savedInstanceState) {
+            synchronized (AppForegroundTracker.class) {
+                created.add(activity);
+            }
+        }
+
+        @Override
+        public void onActivityStarted(@NonNull Activity activity) {
+            synchronized (AppForegroundTracker.class) {
+                created.add(activity);
+            }
+        }
+
+        @Override
+        public void onActivityResumed(@NonNull Activity activity) {
+        }
+
+        @Override
+        public void onActivityPaused(@NonNull Activity activity) {
+        }
+
+        @Override
+        public void onActivityStopped(@NonNull Activity activity) {
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(@NonNull Activity activity, @NonNull Bundle outState) {
+        }
+
+        @Override
+        public void onActivityDestroyed(@NonNull Activity activity) {
+            synchronized (AppForegroundTracker.class) {
+                created.remove(activity);
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package io.wazo.callkeep;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.telecom.CallAudioState;
+import android.telecom.Connection;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Audio route and mute state of one call.
+ *
+ * Route requests are applied through Telecom ({@link Connection#setAudioRoute}) after a check
+ * against the supported route mask, and the result comes back as a CallAudioState. Those states
+ * are debounced: a Bluetooth or wired headset flapping produces a burst of them, and only the
+ * state that holds for {@link #DEBOUNCE_MS} is reported, once, with its route, mute flag and
+ * supported route mask. A burst that never settles is still reported every {@link #MAX_DELAY_MS}.
+ * Requested mute changes, and states that match a pending route request, are reported at once.
+ *
+ * Telecom has no mute call for a Connection, so a requested mute is kept until Telecom itself
+ * reports a different mute state (e.g. from a car kit). Nothing is reported before Telecom's
+ * first CallAudioState: a mute requested earlier goes out with it.
+ */
+@RequiresApi(api = Build.VERSION_CODES.M)
+class AudioRouteManager {
+    private static final String TAG = "RNCK:AudioRouteManager";
+    static final long DEBOUNCE_MS = 300;
+    static final long MAX_DELAY_MS = 1500;
+    private static final int ROUTES = CallAudioState.ROUTE_EARPIECE | CallAudioState.ROUTE_BLUETOOTH
+            | CallAudioState.ROUTE_WIRED_HEADSET | CallAudioState.ROUTE_SPEAKER;
+
+    interface Listener {
+        /**
+         * Called at most once per settled burst, outside of any lock.
+         *
+         * @param muteChanged false when only the route or the supported routes changed
+         */
+        void onAudioStateSettled(@NonNull CallAudioState state, boolean muteChanged);
+    }
+
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final String uuid;
+    private final Connection connection;
+    private final Listener listener;
+    private final Runnable settle = this::settle;
+
+    // Current state, with the requested mute applied
+    private boolean hasState;
+    private boolean muted;
+    private int route = CallInfo.ROUTE_UNKNOWN;
+    private int supportedRouteMask;
+    private Boolean telecomMuted;
+    // A mute requested before the first CallAudioState, which that state must not override
+    private boolean isMuteRequestedEarly;
+
+    private Boolean reportedMuted;
+    private int reportedRoute = CallInfo.ROUTE_UNKNOWN;
+    private int reportedRouteMask;
+
+    private int requestedRoute = CallInfo.ROUTE_UNKNOWN;
+    // Uptime of the first unreported state, 0 when everything was reported
+    private long burstStart;
+
+    AudioRouteManager(@NonNull String uuid, @NonNull Connection connection, @NonNull Listener listener) {
+        this.uuid = uuid;
+        this.connection = connection;
+        this.listener = listener;
+    }
+
+    void onAudioStateChanged(@NonNull CallAudioState state) {
+        boolean settleNow;
+        synchronized (this) {
+            if (telecomMuted == null || telecomMuted != state.isMuted()) {
+                if (telecomMuted != null || !isMuteRequestedEarly) {
+                    muted = state.isMuted();
+                }
+                telecomMuted = state.isMuted();
+            }
+            route = state.getRoute();
+            supportedRouteMask = state.getSupportedRouteMask();
+            hasState = true;
+            settleNow = requestedRoute == route;
+            if (settleNow) {
+                requestedRoute = CallInfo.ROUTE_UNKNOWN;
+            } else {
+                long now = SystemClock.uptimeMillis();
+                if (burstStart == 0) {
+                    burstStart = now;
+                }
+                mainHandler.removeCallbacks(settle);
+                mainHandler.postDelayed(settle, Math.max(0, Math.min(DEBOUNCE_MS, burstStart + MAX_DELAY_MS - now)));
+            }
+        }
+        if (settleNow) {
+            settle();
+        }
+    }
+
+    /**
+     * @return false when the route is not a single route, or not supported by the current state
+     */
+    boolean requestRoute(int route) {
+        synchronized (this) {
+            if (Integer.bitCount(route) != 1 || (route & ROUTES) == 0) {
+                Log.w(TAG, "requestRoute: invalid route " + route + " for " + uuid);
+                return false;
+            }
+            if (hasState && (supportedRouteMask & route) == 0) {
+                Log.w(TAG, "requestRoute: route " + route + " not in " + supportedRouteMask + " for " + uuid);
+                return false;
+            }
+            if (hasState && this.route == route) {
+                return true;
+            }
+            requestedRoute = route;
+        }
+        connection.setAudioRoute(route);
+        return true;
+    }
+
+    void requestMuted(boolean muted) {
+        synchronized (this) {
+            this.muted = muted;
+            if (!hasState) {
+                isMuteRequestedEarly = true;
+                return;
+            }
+        }
+        settle();
+    }
+
+    /**
+     * @return {muted, audioRoute, supportedRouteMask}, or null before the first CallAudioState
+     */
+    @Nullable
+    synchronized Map<String, Object> getState() {
+        if (!hasState) {
+            return null;
+        }
+        Map<String, Object> state = new HashMap<>(4);
+        state.put("muted", muted);
+        state.put("audioRoute", route);
+        state.put("supportedRouteMask", supportedRouteMask);
+        return state;
+    }
+
+    void close() {
+        mainHandler.removeCallbacks(settle);
+    }
+
+    private void settle() {
+        CallAudioState state;
+        boolean muteChanged;
+        synchronized (this) {
+            mainHandler.removeCallbacks(settle);
+            burstStart = 0;
+            if (!hasState) {
+                return;
+            }
+            muteChanged = reportedMuted == null || reportedMuted != muted;
+            if (!muteChanged && reportedRoute == route && reportedRouteMask == supportedRouteMask) {
+                return;
+            }
+            reportedMuted = muted;
+            reportedRoute = route;
+            reportedRouteMask = supportedRouteMask;
+            state = new CallAudioState(muted, route, supportedRouteMask);
+        }
+        listener.onAudioStateSettled(state, muteChanged);
+    }
+}
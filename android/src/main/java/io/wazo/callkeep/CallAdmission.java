@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package io.wazo.callkeep;
+
+import static io.wazo.callkeep.CallKeepConstants.ACTION_ONGOING_CALL;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * The steps VoiceConnectionService takes for every new connection that don't involve Telecom:
+ * tracking the call in the registry and the foreground lifecycle, then publishing
+ * ACTION_ONGOING_CALL. The push storm harness runs this class too, so it measures the same code.
+ *
+ * @param <C> the connection type kept in the registry
+ */
+final class CallAdmission<C> {
+    private final CallRegistry<C> registry;
+    private final ForegroundServiceLifecycle foregroundLifecycle;
+
+    CallAdmission(@NonNull CallRegistry<C> registry, @NonNull ForegroundServiceLifecycle foregroundLifecycle) {
+        this.registry = registry;
+        this.foregroundLifecycle = foregroundLifecycle;
+    }
+
+    /**
+     * @return whether the settings ask for CAPABILITY_SUPPORT_HOLD, null when they can't be loaded
+     * yet and the service metadata decides
+     */
+    @Nullable
+    static Boolean supportsHolding(@Nullable ConstraintsMap settings) {
+        if (settings == null) {
+            return null;
+        }
+        return !settings.isNull("supportsHolding") && settings.getBoolean("supportsHolding");
+    }
+
+    /**
+     * @param state the Connection state the call starts in
+     */
+    void admit(@NonNull Context context, @NonNull CallInfo call, int state, @NonNull C connection) {
+        registry.put(call.getUuid(), call.getHandle(), state, connection);
+        foregroundLifecycle.acquire(call.getUuid());
+        CallEventBus.publish(context, CallEvent.of(ACTION_ONGOING_CALL, call));
+    }
+}
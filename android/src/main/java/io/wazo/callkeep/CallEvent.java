@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import static io.wazo.callkeep.CallKeepConstants.ACTION_ANSWER_CALL;
+import static io.wazo.callkeep.CallKeepConstants.ACTION_AUDIO_CALL;
+import static io.wazo.callkeep.CallKeepConstants.ACTION_AUDIO_SESSION;
+import static io.wazo.callkeep.CallKeepConstants.ACTION_CHECK_REACHABILITY;
+import static io.wazo.callkeep.CallKeepConstants.ACTION_DTMF_TONE;
+import static io.wazo.callkeep.CallKeepConstants.ACTION_END_CALL;
+import static io.wazo.callkeep.CallKeepConstants.ACTION_FAILED_CALL;
+import static io.wazo.callkeep.CallKeepConstants.ACTION_HOLD_CALL;
+import static io.wazo.callkeep.CallKeepConstants.ACTION_INCOMING_CALL;
+import static io.wazo.callkeep.CallKeepConstants.ACTION_JOIN_CONFERENCE;
+import static io.wazo.callkeep.CallKeepConstants.ACTION_LEAVE_CONFERENCE;
+import static io.wazo.callkeep.CallKeepConstants.ACTION_ONGOING_CALL;
+import static io.wazo.callkeep.CallKeepConstants.ACTION_REJECT_CALL;
+import static io.wazo.callkeep.CallKeepConstants.ACTION_UNHOLD_CALL;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable call event: one of the ACTION_* constants, the call it applies to and the event
+ * specific payload (DTMF digits, whether the mute flag changed, or conference id). Audio events
+ * take their route, mute flag and supported routes from the call.
+ */
+public final class CallEvent {
+    private final String action;
+    private final CallInfo call;
+    private final String digits;
+    private final boolean muteChanged;
+    private final String conferenceId;
+
+    private CallEvent(String action, CallInfo call, String digits, boolean muteChanged, String conferenceId) {
+        this.action = action;
+        this.call = call;
+        this.digits = digits;
+        this.muteChanged = muteChanged;
+        this.conferenceId = conferenceId;
+    }
+
+    public static CallEvent of(String action, CallInfo call) {
+        return new CallEvent(action, call, null, false, null);
+    }
+
+    public static CallEvent dtmf(CallInfo call, String digits) {
+        return new CallEvent(ACTION_DTMF_TONE, call, digits, false, null);
+    }
+
+    /**
+     * @param call carries the settled route, mute flag and supported route mask
+     * @param muteChanged false when only the route or the supported routes changed
+     */
+    public static CallEvent audioState(CallInfo call, boolean muteChanged) {
+        return new CallEvent(ACTION_AUDIO_CALL, call, null, muteChanged, null);
+    }
+
+    /**
+     * @param conferenceId the conference the call joined, or null when it left its conference
+     */
+    public static CallEvent conference(CallInfo call, String conferenceId) {
+        return new CallEvent(conferenceId != null ? ACTION_JOIN_CONFERENCE : ACTION_LEAVE_CONFERENCE,
+                call, null, false, conferenceId);
+    }
+
+    /**
+     * Rebuilds an event from the legacy Intent layout (see {@link #toAttributeMap()}).
+     */
+    public static CallEvent fromAttributes(String action, Map<String, ?> attributes) {
+        if (attributes == null) {
+            return of(action, null);
+        }
+        CallInfo call = CallInfo.fromMap(attributes);
+        return new CallEvent(action, call, (String) attributes.get("DTMF"),
+                Boolean.TRUE.equals(attributes.get("muteChanged")),
+                (String) attributes.get("conferenceId"));
+    }
+
+    public String getAction() {
+        return action;
+    }
+
+    public CallInfo getCall() {
+        return call;
+    }
+
+    public String getDigits() {
+        return digits;
+    }
+
+    public boolean isMuteChanged() {
+        return muteChanged;
+    }
+
+    public String getConferenceId() {
+        return conferenceId;
+    }
+
+    /**
+     * Invokes the listener callback matching this event's action.
+     *
+     * @return false when the action is not a call event or the event has no call attached
+     */
+    public boolean dispatchTo(CallEventListener listener) {
+        if (ACTION_CHECK_REACHABILITY.equals(action)) {
+            listener.onCheckReachability();
+            return true;
+        }
+        if (call == null) {
+            return false;
+        }
+        switch (action) {
+            case ACTION_INCOMING_CALL:
+                listener.onIncomingCall(call);
+                return true;
+            case ACTION_ONGOING_CALL:
+                listener.onOngoingCall(call);
+                return true;
+            case ACTION_FAILED_CALL:
+                listener.onFailedCall(call);
+                return true;
+            case ACTION_ANSWER_CALL:
+                listener.onAnswerCall(call);
+                return true;
+            case ACTION_REJECT_CALL:
+                listener.onRejectCall(call);
+                return true;
+            case ACTION_END_CALL:
+                listener.onEndCall(call);
+                return true;
+            case ACTION_HOLD_CALL:
+                listener.onHoldChanged(call, true);
+                return true;
+            case ACTION_UNHOLD_CALL:
+                listener.onHoldChanged(call, false);
+                return true;
+            case ACTION_DTMF_TONE:
+                listener.onDtmfTone(call, digits);
+                return true;
+            case ACTION_AUDIO_CALL:
+                listener.onAudioStateChanged(call, muteChanged);
+                return true;
+            case ACTION_AUDIO_SESSION:
+                listener.onAudioSession(call);
+                return true;
+            case ACTION_JOIN_CONFERENCE:
+                listener.onConferenceChanged(call, conferenceId);
+                return true;
+            case ACTION_LEAVE_CONFERENCE:
+                listener.onConferenceChanged(call, null);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Legacy attribute map layout carried in EXTRA_CALL_ATTRIB, or null for events without a call.
+     */
+    public HashMap<String, Object> toAttributeMap() {
+        if (call == null) {
+            return null;
+        }
+        HashMap<String, Object> map = call.toMap();
+        if (digits != null) {
+            map.put("DTMF", digits);
+        }
+        if (muteChanged) {
+            map.put("muteChanged", true);
+        }
+        if (conferenceId != null) {
+            map.put("conferenceId", conferenceId);
+        }
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return "CallEvent{" + action + ", " + call + "}";
+    }
+}
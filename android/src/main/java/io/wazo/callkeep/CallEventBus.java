@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Delivers call events from the ConnectionService side to {@link CallEventListener}s without
+ * going through Intents.
+ *
+ * When no listener is registered (e.g. the plugin is not attached yet) events are kept in a
+ * {@link PendingEventJournal} until {@link #registerAndDrain} hands them over, the journal being
+ * their only fallback. Handed over events are kept until the listener {@link #acknowledge}s them;
+ * if it is unregistered first they go to the remaining listeners, or back to the journal.
+ */
+public final class CallEventBus {
+    private static final String TAG = "FLT:CallEventBus";
+    private static final CopyOnWriteArrayList<CallEventListener> listeners = new CopyOnWriteArrayList<>();
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Also guards the check for listeners in publish(), so no event is journaled after a drain
+    private static final PendingEventJournal journal = new PendingEventJournal();
+    // Events returned by registerAndDrain, per listener, until acknowledged. Guarded by journal
+    private static final Map<CallEventListener, List<CallEvent>> unacknowledged = new HashMap<>();
+
+    private CallEventBus() {
+    }
+
+    public static void register(@NonNull CallEventListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    /**
+     * Registers the listener and returns, oldest first, the events published while there was none.
+     * Call it on the main thread: events published afterwards are dispatched there too, so they
+     * can't be delivered before the returned ones are handled.
+     */
+    @NonNull
+    static List<CallEvent> registerAndDrain(@NonNull CallEventListener listener) {
+        synchronized (journal) {
+            listeners.addIfAbsent(listener);
+            List<CallEvent> events = journal.drain();
+            if (!events.isEmpty()) {
+                unacknowledged.put(listener, events);
+            }
+            return events;
+        }
+    }
+
+    /**
+     * Drops the events the listener got from {@link #registerAndDrain}, once it has handled them.
+     */
+    static void acknowledge(@NonNull CallEventListener listener) {
+        synchronized (journal) {
+            unacknowledged.remove(listener);
+        }
+    }
+
+    public static void unregister(@NonNull CallEventListener listener) {
+        final List<CallEvent> returned;
+        synchronized (journal) {
+            listeners.remove(listener);
+            returned = unacknowledged.remove(listener);
+            if (returned == null) {
+                return;
+            }
+            if (listeners.isEmpty()) {
+                journal.restore(returned);
+                return;
+            }
+        }
+        // Another listener is registered, it gets them after the events it has already seen
+        mainHandler.post(() -> {
+            for (CallEvent event : returned) {
+                dispatchToListeners(event);
+            }
+        });
+    }
+
+    public static boolean hasListeners() {
+        return !listeners.isEmpty();
+    }
+
+    static void publish(@NonNull Context context, @NonNull CallEvent event) {
+        synchronized (journal) {
+            if (listeners.isEmpty()) {
+                journal.append(context, event);
+                return;
+            }
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            dispatchToListeners(event);
+        } else {
+            mainHandler.post(() -> dispatchToListeners(event));
+        }
+    }
+
+    private static void dispatchToListeners(CallEvent event) {
+        for (CallEventListener listener : listeners) {
+            if (!event.dispatchTo(listener)) {
+                Log.w(TAG, "Dropping call event " + event);
+                return;
+            }
+        }
+    }
+}
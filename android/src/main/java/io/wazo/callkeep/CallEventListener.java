@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * In-process listener for call events published by {@link VoiceConnection} and
+ * {@link VoiceConnectionService}.
+ *
+ * Callbacks are always invoked on the main thread. {@link CallInfo} is immutable, so listeners may
+ * keep references to it.
+ */
+public interface CallEventListener {
+    void onIncomingCall(@NonNull CallInfo call);
+
+    void onOngoingCall(@NonNull CallInfo call);
+
+    void onFailedCall(@NonNull CallInfo call);
+
+    void onAnswerCall(@NonNull CallInfo call);
+
+    void onRejectCall(@NonNull CallInfo call);
+
+    void onEndCall(@NonNull CallInfo call);
+
+    void onHoldChanged(@NonNull CallInfo call, boolean hold);
+
+    void onDtmfTone(@NonNull CallInfo call, @Nullable String digits);
+
+    /**
+     * Called once per settled audio state; the call carries its route, mute flag and supported
+     * route mask.
+     *
+     * @param muteChanged whether the mute flag differs from the last reported state
+     */
+    void onAudioStateChanged(@NonNull CallInfo call, boolean muteChanged);
+
+    void onAudioSession(@NonNull CallInfo call);
+
+    /**
+     * @param conferenceId the conference the call joined, or null when it left its conference
+     */
+    void onConferenceChanged(@NonNull CallInfo call, @Nullable String conferenceId);
+
+    void onCheckReachability();
+}
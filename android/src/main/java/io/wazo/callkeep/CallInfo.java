@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import static io.wazo.callkeep.CallKeepConstants.EXTRA_CALLER_NAME;
+import static io.wazo.callkeep.CallKeepConstants.EXTRA_CALL_DATA;
+import static io.wazo.callkeep.CallKeepConstants.EXTRA_CALL_NUMBER;
+import static io.wazo.callkeep.CallKeepConstants.EXTRA_CALL_UUID;
+
+import android.os.Bundle;
+import android.util.Log;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.wazo.callkeep.utils.BinaryMapCodec;
+import io.wazo.callkeep.utils.CallDataCodec;
+
+/**
+ * Immutable description of a call: identity, display information and last known audio state.
+ *
+ * Every change produces a new instance through one of the with* methods, which copy five
+ * references instead of a whole attribute map. Instances can therefore be handed to other threads
+ * and listeners without defensive copies.
+ */
+public final class CallInfo {
+    private static final String TAG = "FLT:CallInfo";
+
+    /** audioRoute value until Telecom reported a CallAudioState. */
+    public static final int ROUTE_UNKNOWN = 0;
+
+    private final String uuid;
+    private final String handle;
+    private final String callerName;
+    // Decoded from encodedData on first read when built by fromBundle
+    private volatile Map<String, Object> additionalData;
+    private volatile byte[] encodedData;
+    private final Boolean muted;
+    private final int audioRoute;
+    private final int supportedRouteMask;
+    private volatile Map<String, Object> eventArguments;
+
+    public CallInfo(String uuid, String handle, String callerName, Map<String, ?> additionalData) {
+        this(uuid, handle, callerName, copyOf(additionalData), null, ROUTE_UNKNOWN, 0);
+    }
+
+    private CallInfo(String uuid, String handle, String callerName, Map<String, Object> additionalData,
+                     Boolean muted, int audioRoute, int supportedRouteMask) {
+        this.uuid = uuid;
+        this.handle = handle;
+        this.callerName = callerName;
+        this.additionalData = additionalData;
+        this.muted = muted;
+        this.audioRoute = audioRoute;
+        this.supportedRouteMask = supportedRouteMask;
+    }
+
+    /**
+     * Builds a CallInfo from call extras (EXTRA_CALL_* keys) with typed getters, ignoring any
+     * other key. Everything is read on the calling thread, no reference to the Bundle is kept.
+     *
+     * EXTRA_CALL_DATA is a {@link CallDataCodec} payload as written by
+     * CallKeepModule.createCallBundle, only decoded when {@link #getAdditionalData()} is first
+     * called, or a Serializable map, copied right away.
+     */
+    @SuppressWarnings("unchecked")
+    public static CallInfo fromBundle(Bundle extras) {
+        byte[] encoded = extras.getByteArray(EXTRA_CALL_DATA);
+        Map<String, Object> data = null;
+        if (encoded == null && extras.containsKey(EXTRA_CALL_DATA)) {
+            Serializable serialized = extras.getSerializable(EXTRA_CALL_DATA);
+            if (serialized instanceof Map) {
+                data = copyOf((Map<String, ?>) serialized);
+            }
+        }
+        CallInfo call = new CallInfo(
+                extras.getString(EXTRA_CALL_UUID),
+                extras.getString(EXTRA_CALL_NUMBER),
+                extras.getString(EXTRA_CALLER_NAME),
+                data, null, ROUTE_UNKNOWN, 0);
+        call.encodedData = encoded;
+        return call;
+    }
+
+    /**
+     * Builds a CallInfo from the legacy attribute map layout (EXTRA_CALL_* keys and the audio
+     * state written by {@link #toMap()}).
+     */
+    @SuppressWarnings("unchecked")
+    public static CallInfo fromMap(Map<String, ?> map) {
+        Object data = map.get(EXTRA_CALL_DATA);
+        Object muted = map.get("isMuted");
+        Object route = map.get("audioRoute");
+        Object routeMask = map.get("supportedRouteMask");
+        return new CallInfo(
+                (String) map.get(EXTRA_CALL_UUID),
+                (String) map.get(EXTRA_CALL_NUMBER),
+                (String) map.get(EXTRA_CALLER_NAME),
+                data instanceof Map ? copyOf((Map<String, ?>) data) : null,
+                muted instanceof Boolean ? (Boolean) muted : null,
+                route instanceof Integer ? (Integer) route : ROUTE_UNKNOWN,
+                routeMask instanceof Integer ? (Integer) routeMask : 0
+        );
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public String getHandle() {
+        return handle;
+    }
+
+    public String getCallerName() {
+        return callerName;
+    }
+
+    /**
+     * Read-only, or null when the call was created without additional data.
+     */
+    public Map<String, Object> getAdditionalData() {
+        byte[] encoded = encodedData;
+        if (encoded != null) {
+            // Racing readers decode equivalent maps, any of them can win
+            additionalData = decodeAdditionalData(encoded);
+            encodedData = null;
+        }
+        return additionalData;
+    }
+
+    /**
+     * @return null when the payload can't be decoded
+     */
+    private Map<String, Object> decodeAdditionalData(byte[] encoded) {
+        try {
+            return Collections.unmodifiableMap(CallDataCodec.decode(encoded));
+        } catch (BinaryMapCodec.FormatException e) {
+            Log.w(TAG, "Dropping undecodable additionalData of " + uuid + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return the last reported mute state, or null before the first CallAudioState
+     */
+    public Boolean getMuted() {
+        return muted;
+    }
+
+    public int getAudioRoute() {
+        return audioRoute;
+    }
+
+    /**
+     * @return CallAudioState.ROUTE_* bits of the last reported state, 0 before the first one
+     */
+    public int getSupportedRouteMask() {
+        return supportedRouteMask;
+    }
+
+    public CallInfo withHandle(String handle) {
+        return new CallInfo(uuid, handle, callerName, getAdditionalData(), muted, audioRoute, supportedRouteMask);
+    }
+
+    public CallInfo withCallerName(String callerName) {
+        return new CallInfo(uuid, handle, callerName, getAdditionalData(), muted, audioRoute, supportedRouteMask);
+    }
+
+    public CallInfo withAdditionalData(Map<String, ?> additionalData) {
+        return new CallInfo(uuid, handle, callerName, copyOf(additionalData), muted, audioRoute, supportedRouteMask);
+    }
+
+    public CallInfo withMuted(boolean muted) {
+        return new CallInfo(uuid, handle, callerName, getAdditionalData(), muted, audioRoute, supportedRouteMask);
+    }
+
+    public CallInfo withAudioRoute(int audioRoute) {
+        return new CallInfo(uuid, handle, callerName, getAdditionalData(), muted, audioRoute, supportedRouteMask);
+    }
+
+    public CallInfo withAudioState(boolean muted, int audioRoute, int supportedRouteMask) {
+        return new CallInfo(uuid, handle, callerName, getAdditionalData(), muted, audioRoute, supportedRouteMask);
+    }
+
+    /**
+     * Applies the known EXTRA_CALL_* keys of a legacy attribute map, ignoring the others.
+     */
+    @SuppressWarnings("unchecked")
+    public CallInfo merge(Map<String, ?> attributes) {
+        if (attributes == null || attributes.isEmpty()) {
+            return this;
+        }
+        String newHandle = attributes.containsKey(EXTRA_CALL_NUMBER) ? (String) attributes.get(EXTRA_CALL_NUMBER) : handle;
+        String newName = attributes.containsKey(EXTRA_CALLER_NAME) ? (String) attributes.get(EXTRA_CALLER_NAME) : callerName;
+        Map<String, Object> newData = getAdditionalData();
+        Object data = attributes.get(EXTRA_CALL_DATA);
+        if (data instanceof Map) {
+            newData = copyOf((Map<String, ?>) data);
+        }
+        return new CallInfo(uuid, newHandle, newName, newData, muted, audioRoute, supportedRouteMask);
+    }
+
+    /**
+     * Arguments shared by the call related Flutter events (callUUID, handle, name,
+     * additionalData). Built once per instance and read-only.
+     */
+    public Map<String, Object> toEventArguments() {
+        Map<String, Object> arguments = eventArguments;
+        if (arguments == null) {
+            HashMap<String, Object> map = new HashMap<>(8);
+            map.put("callUUID", uuid);
+            map.put("handle", handle);
+            map.put("name", callerName);
+            map.put("additionalData", getAdditionalData());
+            arguments = Collections.unmodifiableMap(map);
+            eventArguments = arguments;
+        }
+        return arguments;
+    }
+
+    /**
+     * Legacy attribute map layout, used for Intent based delivery.
+     */
+    public HashMap<String, Object> toMap() {
+        HashMap<String, Object> map = new HashMap<>(8);
+        map.put(EXTRA_CALL_UUID, uuid);
+        map.put(EXTRA_CALL_NUMBER, handle);
+        map.put(EXTRA_CALLER_NAME, callerName);
+        Map<String, Object> data = getAdditionalData();
+        if (data != null) {
+            map.put(EXTRA_CALL_DATA, new HashMap<>(data));
+        }
+        if (muted != null) {
+            map.put("isMuted", muted);
+        }
+        if (audioRoute != ROUTE_UNKNOWN) {
+            map.put("audioRoute", audioRoute);
+        }
+        if (supportedRouteMask != 0) {
+            map.put("supportedRouteMask", supportedRouteMask);
+        }
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return "CallInfo{uuid=" + uuid + ", handle=" + handle + ", callerName=" + callerName + "}";
+    }
+
+    private static Map<String, Object> copyOf(Map<String, ?> map) {
+        if (map == null) {
+            return null;
+        }
+        if (map.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        return Collections.unmodifiableMap(new HashMap<String, Object>(map));
+    }
+}
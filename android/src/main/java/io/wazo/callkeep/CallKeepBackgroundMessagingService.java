@@ -17,49 +17,217 @@
 
 package io.wazo.callkeep;
 
-import android.annotation.SuppressLint;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Handler;
 import android.os.IBinder;
-import android.os.PowerManager;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import io.flutter.FlutterInjector;
+import io.flutter.embedding.engine.FlutterEngine;
+import io.flutter.embedding.engine.FlutterEngineCache;
+import io.flutter.embedding.engine.dart.DartExecutor;
+import io.flutter.embedding.engine.loader.FlutterLoader;
+import io.flutter.view.FlutterCallbackInformation;
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * Hosts a headless FlutterEngine that runs the Dart handler registered with
+ * FlutterCallkeep.registerBackgroundHandler while the app has no activity.
+ *
+ * The engine is started ahead of the incoming call (from the push path and when the service is
+ * woken up) and kept in FlutterEngineCache, so later wakeups reuse the running isolate. CallKeep
+ * is registered on it like on any engine: once the handler called setup(), call events reach it
+ * through the usual event channel.
+ */
 public class CallKeepBackgroundMessagingService extends Service {
   private static final String TAG = "FLT:CallKeepService";
-  private static @Nullable PowerManager.WakeLock sWakeLock;
+  public static final String ENGINE_ID = "callkeep_background_engine";
+  private static final String PREFERENCES = "callkeep-background";
+  private static final String DISPATCHER_HANDLE_KEY = "dispatcherHandle";
+  private static final String CALLBACK_HANDLE_KEY = "callbackHandle";
+  private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+  // Owner of the wake lock taken when a wakeup is not tied to a call
+  private static final String WAKEUP_WAKE_LOCK = "wakeup";
+  private static boolean isEngineStarting = false;
+  // Set when the app's engine took over while a call still needed the headless isolate
+  private static boolean destroyWhenIdle = false;
+
   /**
    * Acquire a wake lock to ensure the device doesn't go to sleep while processing background tasks.
+   * It is released once an incoming call reaches the ConnectionService, when this service is
+   * destroyed, or after the timeout.
    */
-  @SuppressLint("WakelockTimeout")
   public static void acquireWakeLockNow(Context context) {
-    if (sWakeLock == null || !sWakeLock.isHeld()) {
-      PowerManager powerManager = (PowerManager) context.getSystemService(POWER_SERVICE);
-      sWakeLock =
-              powerManager.newWakeLock(
-                      PowerManager.PARTIAL_WAKE_LOCK, CallKeepBackgroundMessagingService.class.getCanonicalName());
-      sWakeLock.setReferenceCounted(false);
-      sWakeLock.acquire();
+    acquireWakeLockNow(context, null);
+  }
+
+  /**
+   * Acquire a wake lock owned by the call, released when the call ends or after the
+   * "wakeLockTimeoutMs" setting (60 s by default).
+   */
+  public static void acquireWakeLockNow(Context context, @Nullable String callUuid) {
+    long timeoutMs = WakeLockManager.DEFAULT_TIMEOUT_MS;
+    ConstraintsMap settings = CallKeepModule.getSettings(context);
+    if (settings != null && !settings.isNull("wakeLockTimeoutMs")) {
+      timeoutMs = Math.max(1000, settings.getInt("wakeLockTimeoutMs"));
+    }
+    WakeLockManager.getInstance(context).acquire(callUuid == null ? WAKEUP_WAKE_LOCK : callUuid, timeoutMs);
+  }
+
+  /**
+   * Releases the lock of {@link #acquireWakeLockNow(Context)}, once the incoming call it covered
+   * has been handed to Telecom.
+   */
+  static void releaseWakeupLock(Context context) {
+    WakeLockManager.getInstance(context).release(WAKEUP_WAKE_LOCK);
+  }
+
+  /**
+   * Stores the raw Dart callback handles of the plugin's dispatcher and of the user handler.
+   */
+  public static void setCallbackHandles(@NonNull Context context, long dispatcherHandle, long callbackHandle) {
+    getPreferences(context).edit()
+            .putLong(DISPATCHER_HANDLE_KEY, dispatcherHandle)
+            .putLong(CALLBACK_HANDLE_KEY, callbackHandle)
+            .apply();
+  }
+
+  /**
+   * @return the raw handle of the user handler, 0 when none was registered
+   */
+  public static long getCallbackHandle(@NonNull Context context) {
+    return getPreferences(context).getLong(CALLBACK_HANDLE_KEY, 0);
+  }
+
+  /**
+   * Starts the headless engine unless it already runs, the app has an activity or no handler
+   * was registered. Safe to call from any thread, the engine is created on the main thread.
+   */
+  public static void prewarmEngine(@NonNull Context context) {
+    final Context appContext = context.getApplicationContext();
+    if (AppForegroundTracker.isRunning()) {
+      return;
+    }
+    if (Looper.myLooper() == Looper.getMainLooper()) {
+      startEngine(appContext);
+    } else {
+      mainHandler.post(() -> startEngine(appContext));
+    }
+  }
+
+  @MainThread
+  private static void startEngine(final Context context) {
+    if (isEngineStarting || FlutterEngineCache.getInstance().contains(ENGINE_ID)) {
+      return;
+    }
+    final long dispatcherHandle = getPreferences(context).getLong(DISPATCHER_HANDLE_KEY, 0);
+    if (dispatcherHandle == 0) {
+      return;
+    }
+    isEngineStarting = true;
+    final long start = SystemClock.elapsedRealtime();
+    final FlutterLoader loader = FlutterInjector.instance().flutterLoader();
+    loader.startInitialization(context);
+    loader.ensureInitializationCompleteAsync(context, null, mainHandler, () -> {
+      isEngineStarting = false;
+      if (AppForegroundTracker.isRunning()) {
+        // The app's own engine came up meanwhile and gets the call events
+        return;
+      }
+      FlutterCallbackInformation callbackInfo = FlutterCallbackInformation.lookupCallbackInformation(dispatcherHandle);
+      if (callbackInfo == null) {
+        Log.w(TAG, "Background dispatcher not found, registerBackgroundHandler must be called again");
+        return;
+      }
+      FlutterEngine engine = new FlutterEngine(context);
+      engine.getDartExecutor().executeDartCallback(
+              new DartExecutor.DartCallback(context.getAssets(), loader.findAppBundlePath(), callbackInfo));
+      FlutterEngineCache.getInstance().put(ENGINE_ID, engine);
+      Log.d(TAG, "Background engine started in " + (SystemClock.elapsedRealtime() - start) + "ms");
+    });
+  }
+
+  /**
+   * @return the running headless engine, or null
+   */
+  @Nullable
+  @MainThread
+  public static FlutterEngine getEngine() {
+    return FlutterEngineCache.getInstance().get(ENGINE_ID);
+  }
+
+  /**
+   * Stops the headless engine once the app has its own engine again. While a call is active its
+   * isolate may still be driving the call (media, signaling), so it is only stopped when the last
+   * call ends.
+   */
+  @MainThread
+  public static void destroyEngineWhenIdle() {
+    if (VoiceConnectionService.hasActiveConnections()) {
+      destroyWhenIdle = getEngine() != null;
+      return;
+    }
+    destroyEngine();
+  }
+
+  /**
+   * Called by VoiceConnectionService when its last call is gone.
+   */
+  static void onCallsEnded() {
+    mainHandler.post(() -> {
+      if (destroyWhenIdle && !VoiceConnectionService.hasActiveConnections()) {
+        destroyEngine();
+      }
+    });
+  }
+
+  /**
+   * Stops the headless engine right away.
+   */
+  @MainThread
+  public static void destroyEngine() {
+    destroyWhenIdle = false;
+    FlutterEngineCache cache = FlutterEngineCache.getInstance();
+    FlutterEngine engine = cache.get(ENGINE_ID);
+    if (engine != null) {
+      cache.remove(ENGINE_ID);
+      engine.destroy();
     }
   }
 
+  private static SharedPreferences getPreferences(Context context) {
+    return context.getApplicationContext().getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+  }
+
+  @Override
+  public int onStartCommand(Intent intent, int flags, int startId) {
+    if (intent != null) {
+      Log.d(TAG, "wakeUpApplication: " + intent.getStringExtra(CallKeepConstants.EXTRA_CALL_UUID) +
+              ", number : " + intent.getStringExtra(CallKeepConstants.EXTRA_CALL_NUMBER) +
+              ", displayName:" + intent.getStringExtra(CallKeepConstants.EXTRA_CALLER_NAME));
+    }
+    prewarmEngine(this);
+    return START_NOT_STICKY;
+  }
+
   @Nullable
   @Override
   public IBinder onBind(Intent intent) {
-    Log.d(TAG, "wakeUpApplication: " + intent.getStringExtra(CallKeepConstants.EXTRA_CALL_UUID) +
-            ", number : " + intent.getStringExtra(CallKeepConstants.EXTRA_CALL_NUMBER) +
-            ", displayName:" + intent.getStringExtra(CallKeepConstants.EXTRA_CALLER_NAME));
-    //TODO: not implemented
     return null;
   }
 
   @Override
   public void onDestroy() {
     super.onDestroy();
-    if (sWakeLock != null) {
-      sWakeLock.release();
-    }
+    releaseWakeupLock(this);
   }
 }
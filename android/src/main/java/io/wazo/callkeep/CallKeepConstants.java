@@ -14,11 +14,10 @@ public class CallKeepConstants {
     public static final String ACTION_DTMF_TONE = "ACTION_DTMF_TONE";
     public static final String ACTION_END_CALL = "ACTION_END_CALL";
     public static final String ACTION_HOLD_CALL = "ACTION_HOLD_CALL";
-    public static final String ACTION_MUTE_CALL = "ACTION_MUTE_CALL";
     public static final String ACTION_AUDIO_CALL = "ACTION_AUDIO_CALL";
     public static final String ACTION_UNHOLD_CALL = "ACTION_UNHOLD_CALL";
-    public static final String ACTION_UNMUTE_CALL = "ACTION_UNMUTE_CALL";
-    public static final String ACTION_WAKE_APP = "ACTION_WAKE_APP";
+    public static final String ACTION_JOIN_CONFERENCE = "ACTION_JOIN_CONFERENCE";
+    public static final String ACTION_LEAVE_CONFERENCE = "ACTION_LEAVE_CONFERENCE";
 
     public static final String EXTRA_CALL_NUMBER = "EXTRA_CALL_NUMBER";
     public static final String EXTRA_CALL_UUID = "EXTRA_CALL_UUID";
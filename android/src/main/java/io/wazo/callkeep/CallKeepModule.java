@@ -20,18 +20,17 @@ package io.wazo.callkeep;
 import android.Manifest;
 import android.annotation.SuppressLint;
 import android.app.Activity;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
-import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.graphics.drawable.Icon;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.telecom.Connection;
 import android.telecom.PhoneAccount;
 import android.telecom.PhoneAccountHandle;
@@ -44,51 +43,89 @@ import androidx.annotation.ChecksSdkIntAtLeast;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.core.content.ContextCompat;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import io.flutter.plugin.common.BinaryMessenger;
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel.Result;
+import io.wazo.callkeep.utils.CallDataCodec;
 import io.wazo.callkeep.utils.Callback;
 import io.wazo.callkeep.utils.ConstraintsMap;
 import io.wazo.callkeep.utils.ConstraintsArray;
-import io.wazo.callkeep.utils.MapUtils;
+import io.wazo.callkeep.utils.KeyedSerialExecutor;
+import io.wazo.callkeep.utils.MainThreadResult;
+import io.wazo.callkeep.utils.MethodCallTask;
 import io.wazo.callkeep.utils.PermissionUtils;
 
 import static io.wazo.callkeep.CallKeepConstants.*;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
 // @see https://github.com/kbagchiGWC/voice-quickstart-android/blob/9a2aff7fbe0d0a5ae9457b48e9ad408740dfb968/exampleConnectionService/src/main/java/com/twilio/voice/examples/connectionservice/VoiceConnectionServiceActivity.java
 public class CallKeepModule {
     private static final String E_ACTIVITY_DOES_NOT_EXIST = "E_ACTIVITY_DOES_NOT_EXIST";
     private static final String E_CONNECTION_SERVICE_NOT_AVAILABLE = "E_CONNECTION_SERVICE_NOT_AVAILABLE";
     private static final String TAG = "FLT:CallKeepModule";
 
-    private static TelecomManager telecomManager;
-    private static TelephonyManager telephonyManager;
-    private static PhoneAccountHandle accountHandle;
-    private static ConstraintsMap settings;
+    // Commands that need the Activity or show UI, run on the main thread
+    private static final Set<String> MAIN_THREAD_METHODS = new HashSet<>(Arrays.asList(
+            "requestPermissions",
+            "openPhoneAccounts",
+            "backToForeground"
+    ));
+    private static final int COMMAND_THREADS = 4;
+    // Settings the registered PhoneAccount depends on
+    private static final Set<String> PHONE_ACCOUNT_SETTINGS = new HashSet<>(Arrays.asList(
+            "imageName",
+            "isSelfManaged",
+            "handleSchema"
+    ));
+
+    private static volatile TelecomManager telecomManager;
+    private static volatile TelephonyManager telephonyManager;
+    private static volatile PhoneAccountHandle accountHandle;
+    private static CallKeepSettings settings;
+    // Whether a setup() of this process already replaced the stored settings
+    private static boolean hasReplacedSettings = false;
     private static boolean hasSetup = false;
+    // True once the PhoneAccount is known to be registered with the current options in this process
+    private static boolean isAccountRegistered = false;
     private final Context context;
-    private boolean isReceiverRegistered = false;
-    private VoiceBroadcastReceiver voiceBroadcastReceiver;
-    private final List<String> requiredPermissions = new LinkedList<>();
-    private Activity currentActivity = null;
+    // Set by the first successful setup(), until dispose() or handOffEvents()
+    private volatile boolean isEventsRegistered = false;
+    // Set once another engine took over the call events, see handOffEvents()
+    private volatile boolean isHandedOff = false;
+    private final VoiceEventListener voiceEventListener = new VoiceEventListener();
+    // Replaced as a whole by setup, read from the command pool and the main thread
+    private volatile List<String> requiredPermissions = Collections.emptyList();
+    private volatile Activity currentActivity = null;
     private final MethodChannel eventChannel;
+    private final EventBatcher eventBatcher;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final KeyedSerialExecutor commandExecutor;
+    private final Runnable attachEventListener = this::attachEventListener;
 
     public CallKeepModule(Context context, BinaryMessenger messenger) {
         this.context = context;
         this.eventChannel = new MethodChannel(messenger, "FlutterCallKeep.Event");
+        this.eventBatcher = new EventBatcher(eventChannel);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(COMMAND_THREADS, COMMAND_THREADS,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        pool.allowCoreThreadTimeOut(true);
+        this.commandExecutor = new KeyedSerialExecutor(pool);
     }
 
     public static PhoneAccountHandle getAccountHandle() {
@@ -100,13 +137,64 @@ public class CallKeepModule {
     }
 
     public void dispose() {
-        if (voiceBroadcastReceiver == null || this.context == null) return;
-        LocalBroadcastManager.getInstance(this.context).unregisterReceiver(voiceBroadcastReceiver);
-        VoiceConnectionService.setPhoneAccountHandle(null);
-        isReceiverRegistered = false;
+        boolean wasRegistered = stopEvents();
+        eventBatcher.dispose();
+        flushSettings();
+        if (wasRegistered) {
+            VoiceConnectionService.setPhoneAccountHandle(null);
+        }
+    }
+
+    /**
+     * Stops delivering call events to this engine for good, once the app's own engine took over
+     * from the headless one. Replayed events this engine has not acknowledged go back to the
+     * journal for the next listener. Call it on the main thread.
+     */
+    public void handOffEvents() {
+        isHandedOff = true;
+        stopEvents();
+        eventBatcher.flush();
+    }
+
+    /**
+     * @return true when setup() had registered this engine for call events
+     */
+    private boolean stopEvents() {
+        mainHandler.removeCallbacks(attachEventListener);
+        CallEventBus.unregister(voiceEventListener);
+        boolean wasRegistered = isEventsRegistered;
+        isEventsRegistered = false;
+        return wasRegistered;
+    }
+
+    /**
+     * Meant to be called from the plugin's background task queue, results are always delivered on
+     * the main thread.
+     *
+     * Commands carrying a call UUID run on a worker pool, one at a time per call and in order.
+     * Commands without a UUID (setup, endAllCalls, setAvailable...) run as barriers on the same
+     * pool: they start once every command sent before them has completed, and commands sent after
+     * them wait for them, so endAllCalls can't overtake a queued answerIncomingCall. Activity-bound
+     * commands are posted to the main thread, and so are the Connection changes the pool commands
+     * make (see applyOnMainThread).
+     */
+    public boolean handleMethodCall(@NonNull final MethodCall call, @NonNull Result result) {
+        final Result reply = new MainThreadResult(result);
+        final Runnable task = new MethodCallTask(call.method, () -> dispatchMethodCall(call, reply), reply);
+        if (MAIN_THREAD_METHODS.contains(call.method)) {
+            mainHandler.post(task);
+            return true;
+        }
+        String uuid = call.arguments instanceof Map ? call.<String>argument("uuid") : null;
+        if (uuid == null) {
+            commandExecutor.executeBarrier(task);
+        } else {
+            commandExecutor.execute(uuid, task);
+        }
+        return true;
     }
 
-    public boolean handleMethodCall(@NonNull MethodCall call, @NonNull Result result) {
+    private boolean dispatchMethodCall(@NonNull MethodCall call, @NonNull Result result) {
         switch (call.method) {
             case "setup": {
                 setup(new ConstraintsMap(call.argument("options")));
@@ -124,8 +212,7 @@ public class CallKeepModule {
             }
             break;
             case "answerIncomingCall": {
-                answerIncomingCall(call.argument("uuid"));
-                result.success(null);
+                applyOnMainThread(call.method, answerIncomingCall(call.argument("uuid")), result);
             }
             break;
             case "startCall": {
@@ -139,13 +226,11 @@ public class CallKeepModule {
             }
             break;
             case "endCall": {
-                endCall(call.argument("uuid"));
-                result.success(null);
+                applyOnMainThread(call.method, endCall(call.argument("uuid")), result);
             }
             break;
             case "endAllCalls": {
-                endAllCalls();
-                result.success(null);
+                applyOnMainThread(call.method, endAllCalls(), result);
             }
             break;
             case "requestPermissions": {
@@ -157,43 +242,57 @@ public class CallKeepModule {
             }
             break;
             case "setOnHold": {
-                setOnHold(call.argument("uuid"), call.argument("hold"));
-                result.success(null);
+                applyOnMainThread(call.method, setOnHold(call.argument("uuid"), call.argument("hold")), result);
             }
             break;
             case "reportEndCallWithUUID": {
-                reportEndCallWithUUID(call.argument("uuid"), call.argument("reason"), call.argument("notify"));
-                result.success(null);
+                applyOnMainThread(call.method, reportEndCallWithUUID(
+                        call.argument("uuid"),
+                        call.argument("reason"),
+                        call.argument("notify")
+                ), result);
             }
             break;
             case "reportStartedCallWithUUID": {
-                reportStartedCallWithUUID(call.argument("uuid"));
-                result.success(null);
+                applyOnMainThread(call.method, reportStartedCallWithUUID(call.argument("uuid")), result);
             }
             break;
             case "rejectCall": {
-                rejectCall(call.argument("uuid"));
-                result.success(null);
+                applyOnMainThread(call.method, rejectCall(call.argument("uuid")), result);
             }
             break;
             case "setMutedCall": {
-                setMutedCall(call.argument("uuid"), call.argument("muted"));
-                result.success(null);
+                applyOnMainThread(call.method, setMutedCall(call.argument("uuid"), call.argument("muted")), result);
             }
             break;
             case "setCallAudio": {
-                setCallAudio(call.argument("uuid"), call.argument("audioRoute"));
-                result.success(null);
+                final VoiceConnection conn = VoiceConnectionService.getConnection(call.argument("uuid"));
+                final Integer audioRoute = call.argument("audioRoute");
+                if (conn == null || audioRoute == null) {
+                    result.success(false);
+                    break;
+                }
+                mainHandler.post(new MethodCallTask(call.method, () -> {
+                    result.success(conn.setAudio(audioRoute));
+                    return true;
+                }, result));
+            }
+            break;
+            case "getAudioState": {
+                VoiceConnection conn = VoiceConnectionService.getConnection(call.argument("uuid"));
+                result.success(conn == null ? null : conn.getAudioRouteState());
             }
             break;
             case "sendDTMF": {
-                sendDTMF(call.argument("uuid"), call.argument("key"));
-                result.success(null);
+                applyOnMainThread(call.method, sendDTMF(call.argument("uuid"), call.argument("key")), result);
             }
             break;
             case "updateDisplay": {
-                updateDisplay(call.argument("uuid"), call.argument("callerName"), call.argument("handle"));
-                result.success(null);
+                applyOnMainThread(call.method, updateDisplay(
+                        call.argument("uuid"),
+                        call.argument("callerName"),
+                        call.argument("handle")
+                ), result);
             }
             break;
             case "hasPhoneAccount": {
@@ -219,8 +318,7 @@ public class CallKeepModule {
             }
             break;
             case "setCurrentCallActive": {
-                setCurrentCallActive(call.argument("uuid"));
-                result.success(null);
+                applyOnMainThread(call.method, setCurrentCallActive(call.argument("uuid")), result);
             }
             break;
             case "openPhoneAccounts": {
@@ -232,7 +330,7 @@ public class CallKeepModule {
             }
             break;
             case "foregroundService": {
-                updateSettings(new ConstraintsMap(call.argument("settings")));
+                updateSettings(new ConstraintsMap(call.argument("settings")), false);
                 result.success(null);
             }
             break;
@@ -244,6 +342,68 @@ public class CallKeepModule {
                 activeCalls(result);
             }
             break;
+            case "callsInState": {
+                Number state = call.argument("state");
+                if (state == null) {
+                    result.error("E_INVALID_ARGUMENTS", "Missing state", null);
+                    break;
+                }
+                result.success(isConnectionServiceAvailable()
+                        ? VoiceConnectionService.getConnectionsInState(state.intValue())
+                        : new ArrayList<String>());
+            }
+            break;
+            case "callsWithHandle": {
+                result.success(isConnectionServiceAvailable()
+                        ? VoiceConnectionService.getConnectionsWithHandle(call.argument("handle"))
+                        : new ArrayList<String>());
+            }
+            break;
+            case "batchCommands": {
+                batchCommands(call.argument("commands"), result);
+            }
+            break;
+            case "registerBackgroundHandler": {
+                Number dispatcherHandle = call.argument("dispatcherHandle");
+                Number callbackHandle = call.argument("callbackHandle");
+                if (dispatcherHandle == null || callbackHandle == null) {
+                    result.error("E_INVALID_ARGUMENTS", "Missing background callback handles", null);
+                    break;
+                }
+                CallKeepBackgroundMessagingService.setCallbackHandles(getAppContext(),
+                        dispatcherHandle.longValue(), callbackHandle.longValue());
+                result.success(true);
+            }
+            break;
+            case "getBackgroundCallbackHandle": {
+                result.success(CallKeepBackgroundMessagingService.getCallbackHandle(getAppContext()));
+            }
+            break;
+            case "wakeLockStats": {
+                result.success(WakeLockManager.getInstance(getAppContext()).getStats());
+            }
+            break;
+            case "foregroundServiceStats": {
+                result.success(VoiceConnectionService.getForegroundStats());
+            }
+            break;
+            case "refreshPhoneAccount": {
+                PhoneAccountCache.getInstance().invalidate();
+                hasPhoneAccount(result);
+            }
+            break;
+            case "callTimingStats": {
+                result.success(CallTimings.getStats(Boolean.TRUE.equals(call.argument("reset"))));
+            }
+            break;
+            case "getConference": {
+                result.success(VoiceConnectionService.getConferenceState());
+            }
+            break;
+            case "phoneAccountCacheStats": {
+                result.success(PhoneAccountCache.getInstance().getStats());
+            }
+            break;
             default:
                 return false;
         }
@@ -251,23 +411,25 @@ public class CallKeepModule {
         return true;
     }
 
-    private void setup(ConstraintsMap options) {
-        if (isReceiverRegistered) {
+    private void setup(final ConstraintsMap options) {
+        mainHandler.post(() -> eventBatcher.configure(options));
+        // A later setup() only updates the settings, the listeners apply what changed
+        updateSettings(options, true);
+        if (isEventsRegistered) {
             return;
         }
-        updateSettings(options);
         if (setupImpl(context, options)) {
             registerEvents();
         }
         setupRequiredPermissions(options);
     }
 
-    private static boolean setupImpl(Context context, ConstraintsMap options) {
+    private static synchronized boolean setupImpl(Context context, ConstraintsMap options) {
         boolean isServiceAvailable = isConnectionServiceAvailable();
         if (hasSetup) return isServiceAvailable;
         VoiceConnectionService.setAvailable(false);
         if (isServiceAvailable) {
-            registerPhoneAccount(context, options);
+            registerPhoneAccountIfChanged(context, options);
             VoiceConnectionService.setPhoneAccountHandle(accountHandle);
             VoiceConnectionService.setAvailable(true);
         }
@@ -275,50 +437,180 @@ public class CallKeepModule {
         return isServiceAvailable;
     }
 
-    public static ConstraintsMap getSettings(@Nullable Context context) {
+    /**
+     * @return a read only snapshot of the settings, null when they can't be loaded yet
+     */
+    public static synchronized ConstraintsMap getSettings(@Nullable Context context) {
         if (settings == null) {
             fetchStoredSettings(context);
         }
-        return settings;
+        return settings == null ? null : settings.get();
     }
 
-    private void updateSettings(ConstraintsMap options) {
-        if (settings == null) {
-            settings = options;
+    /**
+     * The first setup() of a process replaces the stored settings with its options, whether or not
+     * a push already loaded them. Every other call deep merges, an explicit null removing a key.
+     */
+    private void updateSettings(ConstraintsMap options, boolean fromSetup) {
+        CallKeepSettings model;
+        boolean replace;
+        synchronized (CallKeepModule.class) {
+            if (settings == null) {
+                fetchStoredSettings(getAppContext());
+            }
+            model = settings;
+            replace = fromSetup && !hasReplacedSettings;
+            if (replace) {
+                hasReplacedSettings = true;
+            }
+        }
+        if (replace) {
+            model.replace(options.toMap());
         } else {
-            settings.merge(options.toMap());
+            model.update(options.toMap());
+        }
+    }
+
+    /**
+     * Writes pending settings changes now, before the engine or the service goes away.
+     */
+    static synchronized void flushSettings() {
+        if (settings != null) {
+            settings.flush();
+        }
+    }
+
+    private static CallKeepSettings createSettings(@Nullable Context context, Map<String, Object> initial) {
+        if (context == null) {
+            Log.w(TAG, "[CallKeepModule][createSettings] no context found, settings won't be stored.");
+            return new CallKeepSettings(null, initial);
+        }
+        final Context appContext = context.getApplicationContext();
+        CallKeepSettings model = new CallKeepSettings(SettingsStore.getInstance(appContext), initial);
+        model.addListener((changedKeys, values) -> onSettingsChanged(appContext, changedKeys, values));
+        return model;
+    }
+
+    private static void onSettingsChanged(Context appContext, Set<String> changedKeys, ConstraintsMap values) {
+        if (changedKeys.contains("foregroundService")) {
+            VoiceConnectionService.onForegroundSettingsChanged(values.getMap("foregroundService"));
+        }
+        if (!Collections.disjoint(changedKeys, PHONE_ACCOUNT_SETTINGS)) {
+            reregisterPhoneAccount(appContext, values);
+        }
+    }
+
+    /**
+     * Registers the PhoneAccount again with the new settings, once setup() already registered it.
+     */
+    private static synchronized void reregisterPhoneAccount(Context appContext, ConstraintsMap values) {
+        if (!hasSetup || !isConnectionServiceAvailable()) {
+            return;
         }
-        storeSettings(settings);
+        registerPhoneAccount(appContext, values);
     }
 
     private void setupRequiredPermissions(ConstraintsMap options) {
-        requiredPermissions.add(Manifest.permission.READ_PHONE_STATE);
+        List<String> permissions = new ArrayList<>();
+        permissions.add(Manifest.permission.READ_PHONE_STATE);
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            requiredPermissions.add(Manifest.permission.READ_PHONE_NUMBERS);
+            permissions.add(Manifest.permission.READ_PHONE_NUMBERS);
         }
         if (isSelfManaged(options)) {
-            requiredPermissions.add(Manifest.permission.MANAGE_OWN_CALLS);
+            permissions.add(Manifest.permission.MANAGE_OWN_CALLS);
         } else {
-            requiredPermissions.add(Manifest.permission.CALL_PHONE);
+            permissions.add(Manifest.permission.CALL_PHONE);
         }
+        requiredPermissions = Collections.unmodifiableList(permissions);
     }
 
     private void registerEvents() {
-        if (!isConnectionServiceAvailable()) {
+        if (!isConnectionServiceAvailable() || isHandedOff) {
             return;
         }
-        voiceBroadcastReceiver = new VoiceBroadcastReceiver();
-        registerReceiver();
+        isEventsRegistered = true;
+        mainHandler.post(attachEventListener);
     }
 
+    /**
+     * Starts listening for call events and replays, as a single CallKeepDidLoadWithEvents list of
+     * {event, body} entries, those published while nobody was listening. They are only dropped
+     * from the journal once the Dart side has handled the replay.
+     */
+    private void attachEventListener() {
+        if (isHandedOff) {
+            return;
+        }
+        List<CallEvent> pending = CallEventBus.registerAndDrain(voiceEventListener);
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<Object> replay = new ArrayList<>(pending.size());
+        VoiceEventListener collector = new VoiceEventListener(replay);
+        for (CallEvent event : pending) {
+            if (!event.dispatchTo(collector)) {
+                Log.w(TAG, "Not replaying " + event);
+            }
+        }
+        Log.d(TAG, "Replaying " + replay.size() + " pending events");
+        eventBatcher.flush();
+        eventChannel.invokeMethod("CallKeepDidLoadWithEvents", replay, new Result() {
+            @Override
+            public void success(@Nullable Object result) {
+                CallEventBus.acknowledge(voiceEventListener);
+            }
+
+            @Override
+            public void error(@NonNull String errorCode, @Nullable String errorMessage, @Nullable Object errorDetails) {
+                Log.w(TAG, "Replay failed, keeping the pending events: " + errorCode + " " + errorMessage);
+            }
+
+            @Override
+            public void notImplemented() {
+                Log.w(TAG, "No handler for the replay, keeping the pending events");
+            }
+        });
+    }
+
+    /**
+     * Entry point for push handlers, usually called while the app is not running.
+     *
+     * The PhoneAccount is only registered again when its options changed since the last
+     * registration, and the hasPhoneAccount() Binder call is skipped: if Telecom does not know the
+     * account any more, addNewIncomingCall throws a SecurityException and the account is
+     * registered again before retrying once.
+     */
     public static void displayIncomingCall(Context context,
                                            String uuid,
                                            String handle,
                                            String callerName,
                                            Map<String, String> additionalData) {
-        if (setupImpl(context, getSettings(context))) {
-            displayIncomingCallImpl(uuid, handle, callerName, additionalData);
+        long start = System.nanoTime();
+        // Boots the Dart background handler in parallel with the Telecom round trip
+        CallKeepBackgroundMessagingService.prewarmEngine(context);
+        ConstraintsMap options = getSettings(context);
+        long settingsLoaded = System.nanoTime();
+        if (!setupImpl(context, options)) {
+            return;
         }
+        long setupDone = System.nanoTime();
+        try {
+            addNewIncomingCall(uuid, handle, callerName, additionalData);
+        } catch (SecurityException e) {
+            Log.w(TAG, "addNewIncomingCall rejected, registering the phone account again: " + e);
+            registerPhoneAccount(context, options);
+            try {
+                addNewIncomingCall(uuid, handle, callerName, additionalData);
+            } catch (SecurityException retryError) {
+                Log.e(TAG, "displayIncomingCall failed: " + retryError);
+                return;
+            }
+        }
+        long end = System.nanoTime();
+        Log.d(TAG, "displayIncomingCall from push: settings " + elapsedMicros(start, settingsLoaded)
+                + "us, setup " + elapsedMicros(settingsLoaded, setupDone)
+                + "us, addNewIncomingCall " + elapsedMicros(setupDone, end)
+                + "us, total " + elapsedMicros(start, end) + "us");
     }
 
     private static void displayIncomingCallImpl(String uuid,
@@ -329,7 +621,14 @@ public class CallKeepModule {
         if (!isConnectionServiceAvailable() || !hasPhoneAccount()) {
             return;
         }
+        addNewIncomingCall(uuid, handle, callerName, additionalData);
+        Log.d(TAG, "Finished displayIncomingCall");
+    }
 
+    private static void addNewIncomingCall(String uuid,
+                                           String handle,
+                                           String callerName,
+                                           Map<String, String> additionalData) {
         Log.d(TAG, "displayIncomingCall number: " + handle + ", callerName: " + callerName);
 
         Bundle extras = new Bundle();
@@ -341,21 +640,44 @@ public class CallKeepModule {
         extras.putBundle(TelecomManager.EXTRA_INCOMING_CALL_EXTRAS, callExtras);
 
         telecomManager.addNewIncomingCall(accountHandle, extras);
-        Log.d(TAG, "Finished displayIncomingCall");
     }
 
+    private static long elapsedMicros(long fromNanos, long toNanos) {
+        return (toNanos - fromNanos) / 1000;
+    }
 
-    private void answerIncomingCall(String uuid) {
-        if (!isConnectionServiceAvailable() || !hasPhoneAccount()) {
+    /**
+     * Applies a change to a Connection on the main thread, where Telecom delivers its own callbacks
+     * to it, then answers the method call. The commands that build these changes still run on the
+     * command pool, which keeps the Binder calls off the main thread; as each call's commands post
+     * their changes in order, the main thread applies them in that same order.
+     *
+     * @param change null when there is nothing to change, the call is answered right away
+     */
+    private void applyOnMainThread(String method, @Nullable final Runnable change, @NonNull final Result result) {
+        if (change == null) {
+            result.success(null);
             return;
         }
+        mainHandler.post(new MethodCallTask(method, () -> {
+            change.run();
+            result.success(null);
+            return true;
+        }, result));
+    }
+
+    @Nullable
+    private Runnable answerIncomingCall(String uuid) {
+        if (!isConnectionServiceAvailable() || !hasPhoneAccount()) {
+            return null;
+        }
 
         Connection conn = VoiceConnectionService.getConnection(uuid);
         if (conn == null) {
-            return;
+            return null;
         }
 
-        conn.onAnswer();
+        return conn::onAnswer;
     }
 
 
@@ -381,11 +703,12 @@ public class CallKeepModule {
         telecomManager.placeCall(uri, extras);
     }
 
-    private static String getHandleSchema()  {
-        if (settings == null || settings.isNull("handleSchema")) {
+    private static synchronized String getHandleSchema()  {
+        ConstraintsMap values = settings == null ? null : settings.get();
+        if (values == null || values.isNull("handleSchema")) {
             return PhoneAccount.SCHEME_TEL;
         } else {
-            return Objects.requireNonNull(settings).getString("handleSchema");
+            return values.getString("handleSchema");
         }
     }
 
@@ -395,36 +718,39 @@ public class CallKeepModule {
         extras.putString(EXTRA_CALLER_NAME, callerName);
         extras.putString(EXTRA_CALL_NUMBER, handle);
         if (additionalData != null) {
-            extras.putSerializable(EXTRA_CALL_DATA, new HashMap<>(additionalData));
+            try {
+                extras.putByteArray(EXTRA_CALL_DATA, CallDataCodec.encode(additionalData));
+            } catch (IllegalArgumentException e) {
+                // The call itself still goes through, without its additional data
+                Log.e(TAG, "createCallBundle: additionalData of " + uuid + " dropped: " + e.getMessage());
+            }
         }
         return extras;
     }
 
-    private void endCall(String uuid) {
+    @Nullable
+    private Runnable endCall(String uuid) {
         Log.d(TAG, "endCall called");
         if (!isConnectionServiceAvailable() || !hasPhoneAccount()) {
-            return;
+            return null;
         }
 
         Connection conn = VoiceConnectionService.getConnection(uuid);
         if (conn == null) {
-            return;
+            return null;
         }
-        conn.onDisconnect();
-
-        Log.d(TAG, "endCall executed");
+        return conn::onDisconnect;
     }
 
 
-    private void endAllCalls() {
+    @Nullable
+    private Runnable endAllCalls() {
         Log.d(TAG, "endAllCalls called");
         if (!isConnectionServiceAvailable() || !hasPhoneAccount()) {
-            return;
+            return null;
         }
 
-        VoiceConnectionService.endAllCalls();
-
-        Log.d(TAG, "endAllCalls executed");
+        return VoiceConnectionService::endAllCalls;
     }
 
 
@@ -475,94 +801,228 @@ public class CallKeepModule {
     }
 
 
-    private void setOnHold(String uuid, Boolean shouldHold) {
+    /**
+     * Applies a list of {uuid, op, args} commands in one channel round trip. Ops use the method
+     * names and argument keys of the single-call methods. Service availability and the phone
+     * account are checked once for the whole batch on the command pool. The batch runs there as a
+     * barrier, so posting its commands to the main thread, where Connection changes are applied,
+     * keeps them ordered after the commands sent before it and before those sent after it.
+     *
+     * Replies with one {uuid, op, success, error} map per command, in input order.
+     */
+    private void batchCommands(@Nullable List<Map<String, Object>> commands, @NonNull final Result result) {
+        final int count = commands == null ? 0 : commands.size();
+        if (count == 0) {
+            result.success(new ArrayList<>());
+            return;
+        }
+        final boolean hasAccount = isConnectionServiceAvailable() && hasPhoneAccount();
+        final Object[] results = new Object[count];
+        final AtomicInteger remaining = new AtomicInteger(count);
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            final Map<String, Object> command = commands.get(i);
+            Runnable task = () -> {
+                try {
+                    results[index] = runBatchCommand(command, hasAccount);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Batch command failed: " + e);
+                    Map<String, Object> outcome = new HashMap<>();
+                    outcome.put("uuid", command == null ? null : command.get("uuid"));
+                    outcome.put("op", command == null ? null : command.get("op"));
+                    outcome.put("success", false);
+                    outcome.put("error", "E_COMMAND_FAILED");
+                    results[index] = outcome;
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    result.success(new ArrayList<>(Arrays.asList(results)));
+                }
+            };
+            mainHandler.post(task);
+        }
+    }
+
+    private Map<String, Object> runBatchCommand(@Nullable Map<String, Object> command, boolean hasAccount) {
+        Map<String, Object> outcome = new HashMap<>();
+        String uuid = command == null ? null : (String) command.get("uuid");
+        String op = command == null ? null : (String) command.get("op");
+        Map<?, ?> args = command == null || command.get("args") == null
+                ? new HashMap<>() : (Map<?, ?>) command.get("args");
+        outcome.put("uuid", uuid);
+        outcome.put("op", op);
+        outcome.put("success", false);
+        if (op == null) {
+            outcome.put("error", "E_UNKNOWN_OPERATION");
+            return outcome;
+        }
+        VoiceConnection conn = VoiceConnectionService.getConnection(uuid);
+        if (conn == null) {
+            outcome.put("error", "E_CALL_NOT_FOUND");
+            return outcome;
+        }
+        switch (op) {
+            case "answerIncomingCall":
+            case "endCall":
+            case "rejectCall":
+            case "reportEndCallWithUUID":
+            case "reportStartedCallWithUUID":
+                if (!hasAccount) {
+                    outcome.put("error", "E_PHONE_ACCOUNT_UNAVAILABLE");
+                    return outcome;
+                }
+                break;
+            default:
+                break;
+        }
+        switch (op) {
+            case "answerIncomingCall":
+                conn.onAnswer();
+                break;
+            case "endCall":
+                conn.onDisconnect();
+                break;
+            case "rejectCall":
+                conn.onReject();
+                break;
+            case "reportEndCallWithUUID": {
+                Object reason = args.get("reason");
+                conn.reportDisconnect(reason instanceof Integer ? (Integer) reason : 0,
+                        Boolean.TRUE.equals(args.get("notify")));
+            }
+            break;
+            case "reportStartedCallWithUUID":
+                conn.onStarted();
+                break;
+            case "setCurrentCallActive":
+                conn.setCurrent();
+                break;
+            case "setOnHold":
+                if (Boolean.TRUE.equals(args.get("hold"))) {
+                    conn.onHold();
+                } else {
+                    conn.onUnhold();
+                }
+                break;
+            case "setMutedCall":
+                conn.setMuted(Boolean.TRUE.equals(args.get("muted")));
+                break;
+            case "setCallAudio": {
+                Object audioRoute = args.get("audioRoute");
+                if (!(audioRoute instanceof Integer)) {
+                    outcome.put("error", "E_INVALID_ARGUMENTS");
+                    return outcome;
+                }
+                if (!conn.setAudio((Integer) audioRoute)) {
+                    outcome.put("error", "E_UNSUPPORTED_AUDIO_ROUTE");
+                    return outcome;
+                }
+            }
+            break;
+            case "sendDTMF": {
+                Object key = args.get("key");
+                if (!(key instanceof String) || ((String) key).isEmpty()) {
+                    outcome.put("error", "E_INVALID_ARGUMENTS");
+                    return outcome;
+                }
+                conn.onPlayDtmfTone(((String) key).charAt(0));
+            }
+            break;
+            case "updateDisplay":
+                conn.updateDisplay((String) args.get("callerName"), (String) args.get("handle"));
+                break;
+            default:
+                outcome.put("error", "E_UNKNOWN_OPERATION");
+                return outcome;
+        }
+        outcome.put("success", true);
+        return outcome;
+    }
+
+    @Nullable
+    private Runnable setOnHold(String uuid, Boolean shouldHold) {
         Connection conn = VoiceConnectionService.getConnection(uuid);
         if (conn == null) {
-            return;
+            return null;
         }
 
         if (Boolean.TRUE.equals(shouldHold)) {
-            conn.onHold();
+            return conn::onHold;
         } else {
-            conn.onUnhold();
+            return conn::onUnhold;
         }
     }
 
 
-    private void reportEndCallWithUUID(String uuid, Integer reason, Boolean notify) {
+    @Nullable
+    private Runnable reportEndCallWithUUID(String uuid, Integer reason, Boolean notify) {
         if (!isConnectionServiceAvailable() || !hasPhoneAccount()) {
-            return;
+            return null;
         }
 
         VoiceConnection conn = VoiceConnectionService.getConnection(uuid);
         if (conn == null) {
-            return;
+            return null;
         }
-        conn.reportDisconnect(reason, Boolean.TRUE.equals(notify));
+        return () -> conn.reportDisconnect(reason, Boolean.TRUE.equals(notify));
     }
 
-    private void reportStartedCallWithUUID(String uuid) {
+    @Nullable
+    private Runnable reportStartedCallWithUUID(String uuid) {
         if (!isConnectionServiceAvailable() || !hasPhoneAccount()) {
-            return;
+            return null;
         }
 
         VoiceConnection conn = VoiceConnectionService.getConnection(uuid);
         if (conn == null) {
-            return;
+            return null;
         }
-        conn.onStarted();
+        return conn::onStarted;
     }
 
 
-    private void rejectCall(String uuid) {
+    @Nullable
+    private Runnable rejectCall(String uuid) {
         if (!isConnectionServiceAvailable() || !hasPhoneAccount()) {
-            return;
+            return null;
         }
 
         Connection conn = VoiceConnectionService.getConnection(uuid);
         if (conn == null) {
-            return;
+            return null;
         }
 
-        conn.onReject();
-    }
-
-
-    private void setMutedCall(String uuid, Boolean shouldMute) {
-        VoiceConnection conn = VoiceConnectionService.getConnection(uuid);
-        if (conn == null) {
-            return;
-        }
-        //if the requester wants to mute, do that. otherwise unmute
-        conn.setMuted(Boolean.TRUE.equals(shouldMute));
+        return conn::onReject;
     }
 
 
-    private void setCallAudio(String uuid, Integer audioRoute) {
+    @Nullable
+    private Runnable setMutedCall(String uuid, Boolean shouldMute) {
         VoiceConnection conn = VoiceConnectionService.getConnection(uuid);
         if (conn == null) {
-            return;
+            return null;
         }
         //if the requester wants to mute, do that. otherwise unmute
-        conn.setAudio(audioRoute);
+        return () -> conn.setMuted(Boolean.TRUE.equals(shouldMute));
     }
 
 
-    private void sendDTMF(String uuid, String key) {
+    @Nullable
+    private Runnable sendDTMF(String uuid, String key) {
         Connection conn = VoiceConnectionService.getConnection(uuid);
         if (conn == null) {
-            return;
+            return null;
         }
         char dtmf = key.charAt(0);
-        conn.onPlayDtmfTone(dtmf);
+        return () -> conn.onPlayDtmfTone(dtmf);
     }
 
-    private void updateDisplay(String uuid, String callerName, String handle) {
+    @Nullable
+    private Runnable updateDisplay(String uuid, String callerName, String handle) {
         VoiceConnection conn = VoiceConnectionService.getConnection(uuid);
         if (conn == null) {
-            return;
+            return null;
         }
-        conn.updateDisplay(callerName, handle);
+        return () -> conn.updateDisplay(callerName, handle);
     }
 
 
@@ -611,12 +1071,13 @@ public class CallKeepModule {
     }
 
 
-    private void setCurrentCallActive(String uuid) {
+    @Nullable
+    private Runnable setCurrentCallActive(String uuid) {
         VoiceConnection conn = VoiceConnectionService.getConnection(uuid);
         if (conn == null) {
-            return;
+            return null;
         }
-        conn.setCurrent();
+        return conn::setCurrent;
     }
 
     private void openPhoneAccounts(@NonNull MethodChannel.Result result) {
@@ -624,6 +1085,8 @@ public class CallKeepModule {
             result.error("ConnectionServiceNotAvailable", null, null);
             return;
         }
+        // The user is about to enable or disable the account
+        PhoneAccountCache.getInstance().invalidate();
 
         if (Build.MANUFACTURER.equalsIgnoreCase("Samsung")) {
             Intent intent = new Intent();
@@ -669,7 +1132,25 @@ public class CallKeepModule {
         result.success(isOpened);
     }
 
-    private static void registerPhoneAccount(Context appContext, ConstraintsMap options) {
+    /**
+     * Registers the PhoneAccount unless an account built from the same options was already
+     * registered, by this process or a previous one.
+     */
+    private static synchronized void registerPhoneAccountIfChanged(Context appContext, ConstraintsMap options) {
+        ensureTelecomManagerInitialize(appContext);
+        if (isAccountRegistered) {
+            return;
+        }
+        long fingerprint = phoneAccountFingerprint(appContext, options);
+        if (fingerprint == SettingsStore.getInstance(appContext).loadAccountFingerprint()) {
+            Log.d(TAG, "Phone account unchanged, skipping registration");
+            isAccountRegistered = true;
+            return;
+        }
+        registerPhoneAccount(appContext, options);
+    }
+
+    private static synchronized void registerPhoneAccount(Context appContext, ConstraintsMap options) {
         ensureTelecomManagerInitialize(appContext);
         String appName = getApplicationName(appContext);
         PhoneAccount.Builder builder = new PhoneAccount.Builder(accountHandle, appName);
@@ -683,17 +1164,36 @@ public class CallKeepModule {
         builder.setCapabilities(capabilities);
 
         if (!options.isNull("imageName")) {
-            int identifier = appContext.getResources().getIdentifier(settings.getString("imageName"), "drawable", appContext.getPackageName());
+            int identifier = appContext.getResources().getIdentifier(options.getString("imageName"), "drawable", appContext.getPackageName());
             Icon icon = Icon.createWithResource(appContext, identifier);
             builder.setIcon(icon);
         }
 
         PhoneAccount account = builder.build();
         telecomManager.registerPhoneAccount(account);
+        PhoneAccountCache.getInstance().invalidate();
+        isAccountRegistered = true;
+        SettingsStore.getInstance(appContext).saveAccountFingerprint(phoneAccountFingerprint(appContext, options));
         Log.d(TAG, "Registered phone account " + account);
     }
 
-    private static void ensureTelecomManagerInitialize(Context context) {
+    /**
+     * Hash of everything the registered PhoneAccount is built from. The APK path is included
+     * because it changes on every update, when resource identifiers may have moved.
+     */
+    private static long phoneAccountFingerprint(Context appContext, ConstraintsMap options) {
+        String key = getApplicationName(appContext)
+                + '|' + isSelfManaged(options)
+                + '|' + (options.isNull("imageName") ? "" : options.getString("imageName"))
+                + '|' + appContext.getApplicationInfo().sourceDir;
+        long hash = 1125899906842597L;
+        for (int i = 0; i < key.length(); i++) {
+            hash = 31 * hash + key.charAt(i);
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static synchronized void ensureTelecomManagerInitialize(Context context) {
         if (telecomManager == null) {
             ComponentName cName = new ComponentName(context, VoiceConnectionService.class);
             String appName = getApplicationName(context);
@@ -711,7 +1211,7 @@ public class CallKeepModule {
     }
 
     private void sendEventToFlutter(String eventName, @NonNull ConstraintsMap params) {
-        eventChannel.invokeMethod(eventName, params.toMap());
+        eventBatcher.send(eventName, params.toMap());
     }
 
     private static String getApplicationName(Context appContext) {
@@ -735,30 +1235,7 @@ public class CallKeepModule {
 
     private static boolean hasPhoneAccount() {
         if (telecomManager == null) return false;
-        PhoneAccount phoneAccount = telecomManager.getPhoneAccount(accountHandle);
-        if (phoneAccount == null) return false;
-        return phoneAccount.isEnabled();
-    }
-
-    private void registerReceiver() {
-        if (!isReceiverRegistered) {
-            IntentFilter intentFilter = new IntentFilter();
-            intentFilter.addAction(ACTION_END_CALL);
-            intentFilter.addAction(ACTION_ANSWER_CALL);
-            intentFilter.addAction(ACTION_INCOMING_CALL);
-            intentFilter.addAction(ACTION_ONGOING_CALL);
-            intentFilter.addAction(ACTION_FAILED_CALL);
-            intentFilter.addAction(ACTION_REJECT_CALL);
-            intentFilter.addAction(ACTION_MUTE_CALL);
-            intentFilter.addAction(ACTION_UNMUTE_CALL);
-            intentFilter.addAction(ACTION_DTMF_TONE);
-            intentFilter.addAction(ACTION_UNHOLD_CALL);
-            intentFilter.addAction(ACTION_HOLD_CALL);
-            intentFilter.addAction(ACTION_AUDIO_SESSION);
-            intentFilter.addAction(ACTION_CHECK_REACHABILITY);
-            LocalBroadcastManager.getInstance(this.context).registerReceiver(voiceBroadcastReceiver, intentFilter);
-            isReceiverRegistered = true;
-        }
+        return PhoneAccountCache.getInstance().isEnabled(telecomManager, accountHandle);
     }
 
     private Context getAppContext() {
@@ -802,135 +1279,121 @@ public class CallKeepModule {
         PermissionUtils.requestPermissions(activity, permissions, callback);
     }
 
-    // Store all callkeep settings in JSON
-    private void storeSettings(ConstraintsMap options) {
-        Context context = getAppContext();
+    private static void fetchStoredSettings(Context context) {
         if (context == null) {
-            Log.w(TAG, "[CallKeepModule][storeSettings] no context found.");
+            Log.w(TAG, "[CallKeepModule][fetchStoredSettings] no context found.");
             return;
         }
-        SharedPreferences sharedPref = context.getSharedPreferences("settings-callkeep", Context.MODE_PRIVATE);
-        try {
-            JSONObject jsonObject = MapUtils.convertMapToJson(options);
-            String jsonString = jsonObject.toString();
-            sharedPref.edit().putString("settings", jsonString).apply();
-        } catch (JSONException e) {
-            Log.w(TAG, "[CallKeepModule][storeSettings] exception: " + e);
-        }
+        settings = createSettings(context, SettingsStore.getInstance(context).load());
     }
 
-    private static void fetchStoredSettings(Context context) {
-        if (context == null) {
-            Log.w(TAG, "[CallKeepModule][fetchStoredSettings] no context found.");
-            return;
+    private class VoiceEventListener implements CallEventListener {
+        // Collects {event, body} entries instead of sending them when not null
+        @Nullable
+        private final List<Object> replay;
+
+        VoiceEventListener() {
+            this(null);
         }
-        settings = new ConstraintsMap();
 
-        SharedPreferences sharedPref = context.getSharedPreferences("settings-callkeep", Context.MODE_PRIVATE);
-        try {
-            String jsonString = sharedPref.getString("settings", (new JSONObject()).toString());
-            if (jsonString != null) {
-                JSONObject jsonObject = new JSONObject(jsonString);
-                settings = MapUtils.convertJsonToMap(jsonObject);
+        VoiceEventListener(@Nullable List<Object> replay) {
+            this.replay = replay;
+        }
+
+        @Override
+        public void onIncomingCall(@NonNull CallInfo call) {
+            send("CallKeepShowIncomingCallAction", callArguments(call));
+        }
+
+        @Override
+        public void onOngoingCall(@NonNull CallInfo call) {
+            send("CallKeepDidReceiveStartCallAction", callArguments(call));
+        }
+
+        @Override
+        public void onFailedCall(@NonNull CallInfo call) {
+            send("CallKeepDidReceiveFailedCallAction", callArguments(call));
+        }
+
+        @Override
+        public void onAnswerCall(@NonNull CallInfo call) {
+            send("CallKeepPerformAnswerCallAction", callArguments(call));
+        }
+
+        @Override
+        public void onRejectCall(@NonNull CallInfo call) {
+            send("CallKeepPerformRejectCallAction", uuidArguments(call));
+        }
+
+        @Override
+        public void onEndCall(@NonNull CallInfo call) {
+            send("CallKeepPerformEndCallAction", uuidArguments(call));
+        }
+
+        @Override
+        public void onHoldChanged(@NonNull CallInfo call, boolean hold) {
+            ConstraintsMap args = uuidArguments(call);
+            args.putBoolean("hold", hold);
+            send("CallKeepDidToggleHoldAction", args);
+        }
+
+        @Override
+        public void onDtmfTone(@NonNull CallInfo call, @Nullable String digits) {
+            ConstraintsMap args = uuidArguments(call);
+            args.putString("digits", digits);
+            send("CallKeepDidPerformDTMFAction", args);
+        }
+
+        @Override
+        public void onAudioStateChanged(@NonNull CallInfo call, boolean muteChanged) {
+            // One event per settled state, the Dart side also emits the muted action from it
+            ConstraintsMap args = uuidArguments(call);
+            args.putInt("audioRoute", call.getAudioRoute());
+            args.putInt("supportedRouteMask", call.getSupportedRouteMask());
+            if (call.getMuted() != null) {
+                args.putBoolean("muted", call.getMuted());
             }
-        } catch(JSONException e) {
-            Log.w(TAG, "[CallKeepModule][fetchStoredSettings] exception: " + e);
+            args.putBoolean("muteChanged", muteChanged);
+            send("CallKeepDidChangeAudioAction", args);
         }
-    }
 
-    private class VoiceBroadcastReceiver extends BroadcastReceiver {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            ConstraintsMap args = new ConstraintsMap();
-            Map<String, Object> attributeMap = (Map<String, Object>) intent.getSerializableExtra(EXTRA_CALL_ATTRIB);
+        public void onAudioSession(@NonNull CallInfo call) {
+            send("CallKeepDidActivateAudioSession", new ConstraintsMap());
+        }
 
-            switch (Objects.requireNonNull(intent.getAction())) {
-                case ACTION_END_CALL:
-                    args.putString("callUUID", (String) attributeMap.get(EXTRA_CALL_UUID));
-                    sendEventToFlutter("CallKeepPerformEndCallAction", args);
-                    break;
-                case ACTION_REJECT_CALL:
-                    args.putString("callUUID", (String) attributeMap.get(EXTRA_CALL_UUID));
-                    sendEventToFlutter("CallKeepPerformRejectCallAction", args);
-                    break;
-                case ACTION_ANSWER_CALL:
-                    args.putString("callUUID", (String) attributeMap.get(EXTRA_CALL_UUID));
-                    args.putString("handle", (String) attributeMap.get(EXTRA_CALL_NUMBER));
-                    args.putString("name", (String) attributeMap.get(EXTRA_CALLER_NAME));
-                    args.putMap("additionalData", (Map<String, Object>) attributeMap.get(EXTRA_CALL_DATA));
-                    sendEventToFlutter("CallKeepPerformAnswerCallAction", args);
-                    break;
-                case ACTION_INCOMING_CALL:
-                    args.putString("callUUID", (String) attributeMap.get(EXTRA_CALL_UUID));
-                    args.putString("handle", (String) attributeMap.get(EXTRA_CALL_NUMBER));
-                    args.putString("name", (String) attributeMap.get(EXTRA_CALLER_NAME));
-                    args.putMap("additionalData", (Map<String, Object>) attributeMap.get(EXTRA_CALL_DATA));
-                    sendEventToFlutter("CallKeepShowIncomingCallAction", args);
-                    break;
-                case ACTION_ONGOING_CALL:
-                    args.putString("callUUID", (String) attributeMap.get(EXTRA_CALL_UUID));
-                    args.putString("handle", (String) attributeMap.get(EXTRA_CALL_NUMBER));
-                    args.putString("name", (String) attributeMap.get(EXTRA_CALLER_NAME));
-                    args.putMap("additionalData", (Map<String, Object>) attributeMap.get(EXTRA_CALL_DATA));
-                    sendEventToFlutter("CallKeepDidReceiveStartCallAction", args);
-                    break;
-                case ACTION_FAILED_CALL:
-                    args.putString("callUUID", (String) attributeMap.get(EXTRA_CALL_UUID));
-                    args.putString("handle", (String) attributeMap.get(EXTRA_CALL_NUMBER));
-                    args.putString("name", (String) attributeMap.get(EXTRA_CALLER_NAME));
-                    args.putMap("additionalData", (Map<String, Object>) attributeMap.get(EXTRA_CALL_DATA));
-                    sendEventToFlutter("CallKeepDidReceiveFailedCallAction", args);
-                    break;
-                case ACTION_HOLD_CALL:
-                    args.putBoolean("hold", true);
-                    args.putString("callUUID", (String) attributeMap.get(EXTRA_CALL_UUID));
-                    sendEventToFlutter("CallKeepDidToggleHoldAction", args);
-                    break;
-                case ACTION_UNHOLD_CALL:
-                    args.putBoolean("hold", false);
-                    args.putString("callUUID", (String) attributeMap.get(EXTRA_CALL_UUID));
-                    sendEventToFlutter("CallKeepDidToggleHoldAction", args);
-                    break;
-                case ACTION_MUTE_CALL:
-                    args.putBoolean("muted", true);
-                    args.putString("callUUID", (String) attributeMap.get(EXTRA_CALL_UUID));
-                    sendEventToFlutter("CallKeepDidPerformSetMutedCallAction", args);
-                    break;
-                case ACTION_UNMUTE_CALL:
-                    args.putBoolean("muted", false);
-                    args.putString("callUUID", (String) attributeMap.get(EXTRA_CALL_UUID));
-                    sendEventToFlutter("CallKeepDidPerformSetMutedCallAction", args);
-                    break;
-                case ACTION_DTMF_TONE:
-                    args.putString("digits", (String) attributeMap.get("DTMF"));
-                    args.putString("callUUID", (String) attributeMap.get(EXTRA_CALL_UUID));
-                    sendEventToFlutter("CallKeepDidPerformDTMFAction", args);
-                    break;
-                case ACTION_AUDIO_CALL:
-                    args.putString("route", (String) attributeMap.get("audioRoute"));
-                    args.putString("callUUID", (String) attributeMap.get(EXTRA_CALL_UUID));
-                    sendEventToFlutter("CallKeepDidChangeAudioAction", args);
-                    break;
-                case ACTION_AUDIO_SESSION:
-                    sendEventToFlutter("CallKeepDidActivateAudioSession", args);
-                    break;
-                case ACTION_CHECK_REACHABILITY:
-                    sendEventToFlutter("CallKeepCheckReachability", args);
-                    break;
-                case ACTION_WAKE_APP:
-                    Intent headlessIntent = new Intent(CallKeepModule.this.context, CallKeepBackgroundMessagingService.class);
-                    headlessIntent.putExtra("callUUID", (String) attributeMap.get(EXTRA_CALL_UUID));
-                    headlessIntent.putExtra("name", (String) attributeMap.get(EXTRA_CALLER_NAME));
-                    headlessIntent.putExtra("handle", (String) attributeMap.get(EXTRA_CALL_NUMBER));
-                    headlessIntent.putExtra("additionalData", (HashMap<?, ?>) attributeMap.get(EXTRA_CALL_DATA));
-                    Log.d(TAG, "wakeUpApplication: " + attributeMap.get(EXTRA_CALL_UUID) + ", number : " + attributeMap.get(EXTRA_CALL_NUMBER) + ", displayName:" + attributeMap.get(EXTRA_CALLER_NAME));
-
-                    ComponentName name = CallKeepModule.this.context.startService(headlessIntent);
-                    if (name != null) {
-                        CallKeepBackgroundMessagingService.acquireWakeLockNow(CallKeepModule.this.context);
-                    }
-                    break;
+        @Override
+        public void onConferenceChanged(@NonNull CallInfo call, @Nullable String conferenceId) {
+            ConstraintsMap args = uuidArguments(call);
+            args.putString("conferenceId", conferenceId);
+            send("CallKeepDidChangeConferenceAction", args);
+        }
+
+        @Override
+        public void onCheckReachability() {
+            send("CallKeepCheckReachability", new ConstraintsMap());
+        }
+
+        private void send(String eventName, @NonNull ConstraintsMap params) {
+            if (replay == null) {
+                sendEventToFlutter(eventName, params);
+                return;
             }
+            Map<String, Object> event = new HashMap<>(2);
+            event.put("event", eventName);
+            event.put("body", params.toMap());
+            replay.add(event);
+        }
+
+        private ConstraintsMap uuidArguments(CallInfo call) {
+            ConstraintsMap args = new ConstraintsMap();
+            args.putString("callUUID", call.getUuid());
+            return args;
+        }
+
+        // Read-only map cached by CallInfo, the codec only reads it
+        private ConstraintsMap callArguments(CallInfo call) {
+            return new ConstraintsMap(call.toEventArguments());
         }
     }
 }
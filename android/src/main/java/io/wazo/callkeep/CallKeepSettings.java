@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * The CallKeep settings, deep merged from every setup() / foregroundService() call.
+ *
+ * Nested maps such as "foregroundService" are merged key by key instead of being replaced, and an
+ * explicit null value removes the key at any depth. Every update publishes a new snapshot, so readers never see a half applied update, and listeners are
+ * told which top level keys actually changed. Changes are written to the {@link SettingsStore}
+ * once updates have settled for {@link #PERSIST_DELAY_MS}.
+ */
+class CallKeepSettings {
+    private static final String TAG = "FLT:CallKeepSettings";
+    static final long PERSIST_DELAY_MS = 500;
+
+    interface Listener {
+        /**
+         * Called on the thread that applied the update, outside of any lock.
+         *
+         * @param changedKeys top level keys whose value changed
+         */
+        void onSettingsChanged(@NonNull Set<String> changedKeys, @NonNull ConstraintsMap settings);
+    }
+
+    @Nullable
+    private final SettingsStore store;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable persistRunnable = this::persist;
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Set<String> dirtyKeys = new HashSet<>();
+    // Never mutated once published
+    private volatile Map<String, Object> values;
+
+    CallKeepSettings(@Nullable SettingsStore store, @NonNull Map<String, Object> initial) {
+        this.store = store;
+        this.values = Collections.unmodifiableMap(new HashMap<>(initial));
+    }
+
+    /**
+     * @return a read only view of the current settings
+     */
+    @NonNull
+    ConstraintsMap get() {
+        return new ConstraintsMap(values);
+    }
+
+    void addListener(@NonNull Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    void removeListener(@NonNull Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Deep merges the given settings into the current ones.
+     *
+     * @return the top level keys that changed, empty when the update was a no-op
+     */
+    @NonNull
+    Set<String> update(@NonNull Map<String, Object> changes) {
+        return apply(changes, false);
+    }
+
+    /**
+     * Replaces every setting with the given ones, null values left out.
+     *
+     * @return the top level keys that changed, added or removed
+     */
+    @NonNull
+    Set<String> replace(@NonNull Map<String, Object> settings) {
+        return apply(settings, true);
+    }
+
+    private Set<String> apply(Map<String, Object> changes, boolean replace) {
+        Set<String> changed = new HashSet<>();
+        Map<String, Object> snapshot;
+        synchronized (this) {
+            HashMap<String, Object> next = new HashMap<>(values);
+            if (replace) {
+                for (String key : values.keySet()) {
+                    if (changes.get(key) == null) {
+                        next.remove(key);
+                        changed.add(key);
+                    }
+                }
+            }
+            for (Map.Entry<String, Object> entry : changes.entrySet()) {
+                String key = entry.getKey();
+                Object current = next.get(key);
+                Object merged = replace ? deepMerge(null, entry.getValue()) : deepMerge(current, entry.getValue());
+                if (merged == null) {
+                    if (next.remove(key) != null) {
+                        changed.add(key);
+                    }
+                } else if (!Objects.equals(current, merged)) {
+                    next.put(key, merged);
+                    changed.add(key);
+                }
+            }
+            if (changed.isEmpty()) {
+                return changed;
+            }
+            snapshot = Collections.unmodifiableMap(next);
+            values = snapshot;
+            dirtyKeys.addAll(changed);
+            handler.removeCallbacks(persistRunnable);
+            handler.postDelayed(persistRunnable, PERSIST_DELAY_MS);
+        }
+        Log.d(TAG, "Settings changed: " + changed);
+        ConstraintsMap settings = new ConstraintsMap(snapshot);
+        for (Listener listener : listeners) {
+            listener.onSettingsChanged(changed, settings);
+        }
+        return changed;
+    }
+
+    /**
+     * Writes pending changes now instead of waiting for the debounce delay.
+     */
+    void flush() {
+        handler.removeCallbacks(persistRunnable);
+        persist();
+    }
+
+    private void persist() {
+        Map<String, Object> snapshot;
+        synchronized (this) {
+            if (dirtyKeys.isEmpty()) {
+                return;
+            }
+            dirtyKeys.clear();
+            snapshot = values;
+        }
+        if (store != null) {
+            store.save(snapshot);
+        }
+    }
+
+    /**
+     * @return the update merged into current, null values removed, or null when update is null
+     */
+    @SuppressWarnings("unchecked")
+    private static Object deepMerge(@Nullable Object current, @Nullable Object update) {
+        if (!(update instanceof Map)) {
+            return update;
+        }
+        HashMap<String, Object> merged = current instanceof Map
+                ? new HashMap<>((Map<String, Object>) current)
+                : new HashMap<String, Object>();
+        for (Map.Entry<String, Object> entry : ((Map<String, Object>) update).entrySet()) {
+            Object value = deepMerge(merged.get(entry.getKey()), entry.getValue());
+            if (value == null) {
+                merged.remove(entry.getKey());
+            } else {
+                merged.put(entry.getKey(), value);
+            }
+        }
+        return Collections.unmodifiableMap(merged);
+    }
+}
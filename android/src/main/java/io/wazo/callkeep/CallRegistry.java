@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the calls known to the ConnectionService, keyed by call UUID.
+ *
+ * Reads never lock and iterate the live maps, so callers on the platform thread can walk the
+ * calls while Telecom callbacks add or remove them. Writers are serialized so the secondary
+ * indexes (by connection state and by handle) always agree with the primary map.
+ *
+ * States are the int constants of {@link android.telecom.Connection} (STATE_INITIALIZING ..
+ * STATE_PULLING_CALL). The registry itself has no Android dependency.
+ */
+public final class CallRegistry<C> {
+    private static final int STATE_SLOTS = 8;
+
+    private final ConcurrentHashMap<String, C> calls = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, C>> byHandle = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, C>[] byState;
+    private final Collection<C>[] byStateViews;
+    private final Collection<C> callsView = Collections.unmodifiableCollection(calls.values());
+    private final Set<String> uuidsView = Collections.unmodifiableSet(calls.keySet());
+
+    private static final class Entry {
+        final Object call;
+        int state;
+        String handle;
+
+        Entry(Object call, int state, String handle) {
+            this.call = call;
+            this.state = state;
+            this.handle = handle;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public CallRegistry() {
+        byState = new ConcurrentHashMap[STATE_SLOTS];
+        byStateViews = new Collection[STATE_SLOTS];
+        for (int i = 0; i < STATE_SLOTS; i++) {
+            byState[i] = new ConcurrentHashMap<>();
+            byStateViews[i] = Collections.unmodifiableCollection(byState[i].values());
+        }
+    }
+
+    public C get(String uuid) {
+        return uuid == null ? null : calls.get(uuid);
+    }
+
+    public boolean contains(String uuid) {
+        return uuid != null && calls.containsKey(uuid);
+    }
+
+    public int size() {
+        return calls.size();
+    }
+
+    public boolean isEmpty() {
+        return calls.isEmpty();
+    }
+
+    /**
+     * Live, read-only view of the registered UUIDs. Iteration never throws
+     * ConcurrentModificationException and does not copy.
+     */
+    public Set<String> uuids() {
+        return uuidsView;
+    }
+
+    /**
+     * Live, read-only view of the registered calls.
+     */
+    public Collection<C> calls() {
+        return callsView;
+    }
+
+    /**
+     * Live, read-only view of the calls currently in the given Connection state.
+     */
+    public Collection<C> inState(int state) {
+        if (state < 0 || state >= STATE_SLOTS) {
+            return Collections.emptyList();
+        }
+        return byStateViews[state];
+    }
+
+    public int countInState(int state) {
+        if (state < 0 || state >= STATE_SLOTS) {
+            return 0;
+        }
+        return byState[state].size();
+    }
+
+    /**
+     * Calls whose remote handle (number or SIP address) equals the given one.
+     */
+    public Collection<C> withHandle(String handle) {
+        if (handle == null) {
+            return Collections.emptyList();
+        }
+        ConcurrentHashMap<String, C> index = byHandle.get(handle);
+        if (index == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableCollection(index.values());
+    }
+
+    /**
+     * Registers a call, replacing (and unindexing) any call already stored under the same UUID.
+     *
+     * @return the previously registered call, or null
+     */
+    public synchronized C put(String uuid, String handle, int state, C call) {
+        Entry previous = entries.put(uuid, new Entry(call, state, handle));
+        if (previous != null) {
+            unindex(uuid, previous);
+        }
+        C replaced = calls.put(uuid, call);
+        index(uuid, state, handle, call);
+        return replaced;
+    }
+
+    public synchronized C remove(String uuid) {
+        if (uuid == null) {
+            return null;
+        }
+        Entry entry = entries.remove(uuid);
+        if (entry != null) {
+            unindex(uuid, entry);
+        }
+        return calls.remove(uuid);
+    }
+
+    /**
+     * Removes the call only if it is still the one registered under the UUID.
+     */
+    public synchronized boolean remove(String uuid, C call) {
+        Entry entry = uuid == null ? null : entries.get(uuid);
+        if (entry == null || entry.call != call) {
+            return false;
+        }
+        remove(uuid);
+        return true;
+    }
+
+    /**
+     * Moves a registered call to another state index. Ignored when the UUID is no longer mapped to
+     * this call, e.g. for late Telecom callbacks after the call was removed.
+     */
+    public synchronized void updateState(String uuid, C call, int state) {
+        Entry entry = uuid == null ? null : entries.get(uuid);
+        if (entry == null || entry.call != call || entry.state == state) {
+            return;
+        }
+        removeFromState(uuid, entry.state);
+        entry.state = state;
+        if (state >= 0 && state < STATE_SLOTS) {
+            byState[state].put(uuid, call);
+        }
+    }
+
+    public synchronized void updateHandle(String uuid, C call, String handle) {
+        Entry entry = uuid == null ? null : entries.get(uuid);
+        if (entry == null || entry.call != call) {
+            return;
+        }
+        if (entry.handle == null ? handle == null : entry.handle.equals(handle)) {
+            return;
+        }
+        removeFromHandle(uuid, entry.handle);
+        entry.handle = handle;
+        addToHandle(uuid, handle, call);
+    }
+
+    public synchronized void clear() {
+        calls.clear();
+        entries.clear();
+        byHandle.clear();
+        for (ConcurrentHashMap<String, C> index : byState) {
+            index.clear();
+        }
+    }
+
+    private void index(String uuid, int state, String handle, C call) {
+        if (state >= 0 && state < STATE_SLOTS) {
+            byState[state].put(uuid, call);
+        }
+        addToHandle(uuid, handle, call);
+    }
+
+    private void unindex(String uuid, Entry entry) {
+        removeFromState(uuid, entry.state);
+        removeFromHandle(uuid, entry.handle);
+    }
+
+    private void removeFromState(String uuid, int state) {
+        if (state >= 0 && state < STATE_SLOTS) {
+            byState[state].remove(uuid);
+        }
+    }
+
+    private void addToHandle(String uuid, String handle, C call) {
+        if (handle == null) {
+            return;
+        }
+        ConcurrentHashMap<String, C> index = byHandle.get(handle);
+        if (index == null) {
+            index = new ConcurrentHashMap<>();
+            byHandle.put(handle, index);
+        }
+        index.put(uuid, call);
+    }
+
+    private void removeFromHandle(String uuid, String handle) {
+        if (handle == null) {
+            return;
+        }
+        ConcurrentHashMap<String, C> index = byHandle.get(handle);
+        if (index != null) {
+            index.remove(uuid);
+            if (index.isEmpty()) {
+                byHandle.remove(handle);
+            }
+        }
+    }
+}
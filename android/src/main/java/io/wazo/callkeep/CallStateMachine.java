@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lifecycle of one {@link VoiceConnection}, checked before the matching Telecom state is set.
+ *
+ * <pre>
+ * NEW -> RINGING | DIALING | ACTIVE | DISCONNECTED
+ * RINGING | DIALING -> ACTIVE | DISCONNECTED
+ * ACTIVE <-> HOLDING
+ * any -> DISCONNECTED
+ * </pre>
+ *
+ * Illegal transitions are logged and refused, and so are repeated ones (e.g. a second hold or a
+ * second disconnect), so callers only touch Telecom and notify Flutter on an actual change. Every
+ * state is timestamped with {@link System#nanoTime()} to feed {@link CallTimings}.
+ */
+class CallStateMachine {
+    private static final String TAG = "RNCK:CallStateMachine";
+
+    enum State {
+        NEW, RINGING, DIALING, ACTIVE, HOLDING, DISCONNECTED
+    }
+
+    private final String uuid;
+    private final long[] enteredAt = new long[State.values().length];
+    private State state = State.NEW;
+    private long answeredAt;
+    private boolean audioReported;
+
+    CallStateMachine(String uuid) {
+        this.uuid = uuid;
+        enteredAt[State.NEW.ordinal()] = System.nanoTime();
+    }
+
+    synchronized boolean ring() {
+        return moveTo(State.RINGING, State.NEW);
+    }
+
+    synchronized boolean dial() {
+        return moveTo(State.DIALING, State.NEW);
+    }
+
+    /**
+     * The incoming call was answered.
+     */
+    synchronized boolean answer() {
+        if (!moveTo(State.ACTIVE, State.RINGING)) {
+            return false;
+        }
+        answeredAt = enteredAt[State.ACTIVE.ordinal()];
+        CallTimings.RING_TO_ANSWER.record(elapsedMs(enteredAt[State.RINGING.ordinal()], answeredAt));
+        return true;
+    }
+
+    /**
+     * The call became current: an outgoing call started, a ringing call answered from the app, a
+     * held call resumed.
+     */
+    synchronized boolean activate() {
+        State previous = state;
+        if (!moveTo(State.ACTIVE, State.NEW, State.RINGING, State.DIALING, State.HOLDING)) {
+            return false;
+        }
+        long now = enteredAt[State.ACTIVE.ordinal()];
+        if (previous == State.DIALING) {
+            CallTimings.DIAL_TO_ACTIVE.record(elapsedMs(enteredAt[State.DIALING.ordinal()], now));
+        } else if (previous == State.RINGING) {
+            answeredAt = now;
+            CallTimings.RING_TO_ANSWER.record(elapsedMs(enteredAt[State.RINGING.ordinal()], now));
+        }
+        return true;
+    }
+
+    synchronized boolean hold() {
+        return moveTo(State.HOLDING, State.ACTIVE);
+    }
+
+    synchronized boolean unhold() {
+        return moveTo(State.ACTIVE, State.HOLDING);
+    }
+
+    /**
+     * @return false when the call was already disconnected
+     */
+    synchronized boolean disconnect() {
+        return moveTo(State.DISCONNECTED, State.NEW, State.RINGING, State.DIALING, State.ACTIVE, State.HOLDING);
+    }
+
+    /**
+     * Telecom reported an audio state; the first one after answering closes answer to audio.
+     */
+    synchronized void onAudioState() {
+        if (audioReported || answeredAt == 0) {
+            return;
+        }
+        audioReported = true;
+        CallTimings.ANSWER_TO_AUDIO.record(elapsedMs(answeredAt, System.nanoTime()));
+    }
+
+    private boolean moveTo(State target, State... allowedFrom) {
+        if (state == target) {
+            Log.d(TAG, uuid + " already " + target);
+            return false;
+        }
+        for (State from : allowedFrom) {
+            if (state == from) {
+                Log.d(TAG, uuid + ": " + state + " -> " + target);
+                state = target;
+                enteredAt[target.ordinal()] = System.nanoTime();
+                return true;
+            }
+        }
+        Log.w(TAG, uuid + ": illegal transition " + state + " -> " + target + ", ignored");
+        return false;
+    }
+
+    private static long elapsedMs(long fromNanos, long toNanos) {
+        return fromNanos == 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(toNanos - fromNanos);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import io.wazo.callkeep.utils.LatencyHistogram;
+
+/**
+ * Process wide latency histograms fed by every {@link CallStateMachine}.
+ */
+final class CallTimings {
+    /** From the incoming call ringing to it being answered. */
+    static final LatencyHistogram RING_TO_ANSWER = new LatencyHistogram();
+    /** From an outgoing call dialing to it being reported started (or set active). */
+    static final LatencyHistogram DIAL_TO_ACTIVE = new LatencyHistogram();
+    /** From answering to Telecom reporting the first audio state, i.e. audio being routed. */
+    static final LatencyHistogram ANSWER_TO_AUDIO = new LatencyHistogram();
+
+    private CallTimings() {
+    }
+
+    static Map<String, Object> getStats(boolean reset) {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("ringToAnswer", RING_TO_ANSWER.toMap());
+        stats.put("dialToActive", DIAL_TO_ACTIVE.toMap());
+        stats.put("answerToAudio", ANSWER_TO_AUDIO.toMap());
+        if (reset) {
+            RING_TO_ANSWER.reset();
+            DIAL_TO_ACTIVE.reset();
+            ANSWER_TO_AUDIO.reset();
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.os.Build;
+import android.telecom.Conferenceable;
+import android.telecom.Connection;
+import android.telecom.ConnectionService;
+import android.telecom.DisconnectCause;
+import android.telecom.PhoneAccountHandle;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracks which calls can be merged and the legs of the active {@link VoiceConference}.
+ *
+ * Only the calls outside of the conference carry a conferenceable list: each one can be merged with
+ * the other standalone calls and with the conference, while the legs are managed through the
+ * conference itself. Adding, merging or removing a call therefore only rewrites the lists of the
+ * standalone calls (usually one or two), instead of rebuilding the list of every call, and growing
+ * a conference to n legs stays linear.
+ */
+@RequiresApi(api = Build.VERSION_CODES.M)
+class ConferenceManager {
+    private static final String TAG = "RNCK:ConferenceManager";
+    private static final int LEG_CAPABILITIES = Connection.CAPABILITY_SEPARATE_FROM_CONFERENCE
+            | Connection.CAPABILITY_DISCONNECT_FROM_CONFERENCE;
+
+    private final ConnectionService service;
+    private final LinkedHashMap<String, VoiceConnection> standalone = new LinkedHashMap<>();
+    private final LinkedHashMap<String, VoiceConnection> legs = new LinkedHashMap<>();
+    private VoiceConference conference;
+
+    ConferenceManager(@NonNull ConnectionService service) {
+        this.service = service;
+    }
+
+    synchronized void add(@NonNull VoiceConnection connection) {
+        standalone.put(connection.getUuid(), connection);
+        updateConferenceables();
+    }
+
+    synchronized void remove(@Nullable String uuid) {
+        if (uuid == null) {
+            return;
+        }
+        if (standalone.remove(uuid) != null) {
+            updateConferenceables();
+            return;
+        }
+        VoiceConnection leg = legs.remove(uuid);
+        if (leg != null && conference != null) {
+            conference.removeConnection(leg);
+            dissolveIfAlone();
+            updateConferenceables();
+        }
+    }
+
+    /**
+     * Telecom asked to merge two calls: joins them to the active conference, creating it if needed.
+     */
+    synchronized void merge(@NonNull Connection first, @NonNull Connection second, PhoneAccountHandle handle) {
+        boolean created = false;
+        if (conference == null) {
+            conference = new VoiceConference(handle, this);
+            created = true;
+        }
+        addLeg(conference, first);
+        addLeg(conference, second);
+        if (created) {
+            service.addConference(conference);
+        }
+        updateConferenceables();
+    }
+
+    synchronized void join(@NonNull VoiceConference target, @NonNull Connection connection) {
+        if (target != conference) {
+            return;
+        }
+        addLeg(target, connection);
+        updateConferenceables();
+    }
+
+    synchronized void mergeAll(@NonNull VoiceConference target) {
+        if (target != conference) {
+            return;
+        }
+        for (VoiceConnection connection : new ArrayList<>(standalone.values())) {
+            addLeg(target, connection);
+        }
+        updateConferenceables();
+    }
+
+    /**
+     * Takes a leg out of the conference and makes it the active call, the rest of the conference is
+     * put on hold.
+     */
+    synchronized void separate(@NonNull VoiceConference target, @NonNull Connection connection) {
+        if (target != conference || !(connection instanceof VoiceConnection)) {
+            return;
+        }
+        VoiceConnection leg = (VoiceConnection) connection;
+        if (legs.remove(leg.getUuid()) == null) {
+            return;
+        }
+        removeLeg(target, leg);
+        if (!dissolveIfAlone()) {
+            target.onHold();
+        }
+        if (leg.getState() == Connection.STATE_HOLDING) {
+            leg.onUnhold();
+        } else {
+            leg.setCurrent();
+        }
+        updateConferenceables();
+    }
+
+    /**
+     * Ends every leg, then the conference.
+     */
+    synchronized void disconnect(@NonNull VoiceConference target) {
+        if (target != conference) {
+            target.close(DisconnectCause.LOCAL);
+            return;
+        }
+        conference = null;
+        List<VoiceConnection> ended = new ArrayList<>(legs.values());
+        legs.clear();
+        for (VoiceConnection leg : ended) {
+            target.removeConnection(leg);
+            leg.onDisconnect();
+        }
+        target.close(DisconnectCause.LOCAL);
+        updateConferenceables();
+    }
+
+    /**
+     * @return the conference id, its state and the uuid of each leg, or null without conference
+     */
+    @Nullable
+    synchronized Map<String, Object> getState() {
+        if (conference == null) {
+            return null;
+        }
+        Map<String, Object> state = new HashMap<>();
+        state.put("conferenceId", conference.getConferenceId());
+        state.put("hold", conference.getState() == Connection.STATE_HOLDING);
+        state.put("participants", new ArrayList<>(legs.keySet()));
+        return state;
+    }
+
+    private void addLeg(VoiceConference target, Connection connection) {
+        if (!(connection instanceof VoiceConnection)) {
+            Log.w(TAG, "Ignoring foreign connection " + connection);
+            return;
+        }
+        VoiceConnection leg = (VoiceConnection) connection;
+        String uuid = leg.getUuid();
+        if (legs.containsKey(uuid)) {
+            return;
+        }
+        standalone.remove(uuid);
+        legs.put(uuid, leg);
+        // The legs of a conference are managed through it
+        leg.setConferenceables(new ArrayList<Conferenceable>());
+        leg.setConnectionCapabilities(leg.getConnectionCapabilities() | LEG_CAPABILITIES);
+        if (leg.getState() == Connection.STATE_HOLDING) {
+            leg.onUnhold();
+        }
+        target.addConnection(leg);
+        leg.publishConferenceChanged(target.getConferenceId());
+    }
+
+    private void removeLeg(VoiceConference target, VoiceConnection leg) {
+        target.removeConnection(leg);
+        leg.setConnectionCapabilities(leg.getConnectionCapabilities() & ~LEG_CAPABILITIES);
+        standalone.put(leg.getUuid(), leg);
+        leg.publishConferenceChanged(null);
+    }
+
+    /**
+     * A conference needs two legs, the last one becomes a standalone call again.
+     *
+     * @return true when the conference was closed
+     */
+    private boolean dissolveIfAlone() {
+        VoiceConference target = conference;
+        if (target == null || legs.size() > 1) {
+            return false;
+        }
+        conference = null;
+        for (VoiceConnection leg : new ArrayList<>(legs.values())) {
+            removeLeg(target, leg);
+        }
+        legs.clear();
+        target.close(DisconnectCause.OTHER);
+        Log.d(TAG, "Conference " + target.getConferenceId() + " dissolved");
+        return true;
+    }
+
+    private void updateConferenceables() {
+        VoiceConference target = conference;
+        if (target != null) {
+            target.setConferenceableConnections(new ArrayList<Connection>(standalone.values()));
+        }
+        for (VoiceConnection connection : standalone.values()) {
+            List<Conferenceable> conferenceables = new ArrayList<>(standalone.size());
+            for (VoiceConnection other : standalone.values()) {
+                if (other != connection) {
+                    conferenceables.add(other);
+                }
+            }
+            if (target != null) {
+                conferenceables.add(target);
+            }
+            connection.setConferenceables(conferenceables);
+        }
+    }
+}
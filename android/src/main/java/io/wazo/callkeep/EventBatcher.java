@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import io.flutter.plugin.common.MethodChannel;
+import io.wazo.callkeep.utils.ConstraintsArray;
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * Delivers CallKeep events to the Flutter event channel, optionally coalescing bursts into a
+ * single "CallKeepEventBatch" message.
+ *
+ * Batching is opt-in through the "eventBatching" setup option:
+ * { "enabled": true, "intervalMs": 16, "maxBatchSize": 16, "immediateEvents": [...] }.
+ * Events listed in immediateEvents (answer/end/reject/incoming/reachability by default) flush
+ * whatever is queued and are then sent on their own, so ordering is always preserved.
+ *
+ * Must be used from the main thread, like the MethodChannel it wraps.
+ */
+class EventBatcher {
+    static final String BATCH_EVENT = "CallKeepEventBatch";
+
+    private static final int DEFAULT_INTERVAL_MS = 16;
+    private static final int DEFAULT_MAX_BATCH_SIZE = 16;
+    private static final List<String> DEFAULT_IMMEDIATE_EVENTS = Arrays.asList(
+            "CallKeepPerformAnswerCallAction",
+            "CallKeepPerformEndCallAction",
+            "CallKeepPerformRejectCallAction",
+            "CallKeepShowIncomingCallAction",
+            "CallKeepCheckReachability"
+    );
+
+    private final MethodChannel channel;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable flushRunnable = this::flush;
+    private final Set<String> immediateEvents = new HashSet<>(DEFAULT_IMMEDIATE_EVENTS);
+    private ArrayList<Object> pending = new ArrayList<>();
+    private boolean enabled = false;
+    private int intervalMs = DEFAULT_INTERVAL_MS;
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+    EventBatcher(@NonNull MethodChannel channel) {
+        this.channel = channel;
+    }
+
+    void configure(ConstraintsMap options) {
+        if (options == null) {
+            return;
+        }
+        ConstraintsMap batching = options.getMap("eventBatching");
+        if (batching == null) {
+            return;
+        }
+        enabled = !batching.isNull("enabled") && batching.getBoolean("enabled");
+        if (!batching.isNull("intervalMs")) {
+            intervalMs = Math.max(0, batching.getInt("intervalMs"));
+        }
+        if (!batching.isNull("maxBatchSize")) {
+            maxBatchSize = Math.max(1, batching.getInt("maxBatchSize"));
+        }
+        ConstraintsArray immediate = batching.getArray("immediateEvents");
+        if (immediate != null) {
+            immediateEvents.clear();
+            for (int i = 0; i < immediate.size(); i++) {
+                immediateEvents.add(immediate.getString(i));
+            }
+        }
+        if (!enabled) {
+            flush();
+        }
+    }
+
+    void send(String eventName, Object body) {
+        if (!enabled || immediateEvents.contains(eventName)) {
+            flush();
+            channel.invokeMethod(eventName, body);
+            return;
+        }
+
+        Map<String, Object> event = new HashMap<>(2);
+        event.put("event", eventName);
+        event.put("body", body);
+        pending.add(event);
+
+        if (pending.size() >= maxBatchSize) {
+            flush();
+        } else if (pending.size() == 1) {
+            handler.postDelayed(flushRunnable, intervalMs);
+        }
+    }
+
+    void flush() {
+        handler.removeCallbacks(flushRunnable);
+        if (pending.isEmpty()) {
+            return;
+        }
+        ArrayList<Object> batch = pending;
+        pending = new ArrayList<>();
+        if (batch.size() == 1) {
+            Map<?, ?> event = (Map<?, ?>) batch.get(0);
+            channel.invokeMethod((String) event.get("event"), event.get("body"));
+            return;
+        }
+        channel.invokeMethod(BATCH_EVENT, batch);
+    }
+
+    void dispose() {
+        flush();
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package io.wazo.callkeep;
+
+import static io.wazo.callkeep.CallKeepConstants.FOREGROUND_SERVICE_TYPE_MICROPHONE;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.res.Resources;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+import androidx.core.app.NotificationCompat;
+
+
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * Owns the notification shown while VoiceConnectionService runs in the foreground.
+ *
+ * The channel is created and the icon resolved only when the "foregroundService" settings change,
+ * as reported by {@link #refresh}; otherwise the cached builder is reused and the notification is
+ * only rebuilt (and re-posted while shown) when the number of calls changes.
+ */
+@RequiresApi(api = Build.VERSION_CODES.O)
+class ForegroundNotificationManager {
+    private static final String TAG = "RNCK:ForegroundNotification";
+    private static final String MIPMAP = "mipmap/";
+    private static final String DRAWABLE = "drawable/";
+
+    private final Context context;
+    private final NotificationManager notificationManager;
+    private String channelId;
+    private NotificationCompat.Builder builder;
+    private Notification notification;
+    private int notificationId = FOREGROUND_SERVICE_TYPE_MICROPHONE;
+    // Id passed to startForeground(), kept until the service leaves the foreground
+    private int shownNotificationId;
+    private int callCount = -1;
+    private boolean isShown = false;
+
+    ForegroundNotificationManager(@NonNull Context context) {
+        this.context = context.getApplicationContext();
+        this.notificationManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+    }
+
+    /**
+     * @return the notification to pass to startForeground(), reused while the settings and the
+     * call count are unchanged
+     */
+    @NonNull
+    synchronized Notification getNotification(@NonNull ConstraintsMap foregroundSettings, int calls) {
+        configure(foregroundSettings);
+        if (notification == null || calls != callCount) {
+            callCount = calls;
+            notification = builder.setNumber(calls).build();
+        }
+        return notification;
+    }
+
+    synchronized int getNotificationId() {
+        return notificationId;
+    }
+
+    synchronized void setShown(boolean shown) {
+        isShown = shown;
+        shownNotificationId = notificationId;
+    }
+
+    /**
+     * Re-posts the foreground notification with the new call count, if it is shown.
+     */
+    synchronized void updateCallCount(int calls) {
+        if (!isShown || builder == null || calls == callCount || calls == 0) {
+            return;
+        }
+        callCount = calls;
+        notification = builder.setNumber(calls).build();
+        notificationManager.notify(shownNotificationId, notification);
+    }
+
+    /**
+     * Forces the next {@link #getNotification} to re-read the settings.
+     */
+    synchronized void invalidate() {
+        builder = null;
+        notification = null;
+    }
+
+    /**
+     * Applies changed "foregroundService" settings, re-posting the notification if it is shown.
+     */
+    synchronized void refresh(@NonNull ConstraintsMap foregroundSettings) {
+        invalidate();
+        if (!isShown || callCount <= 0) {
+            return;
+        }
+        configure(foregroundSettings);
+        // A new notificationId only applies from the next startForeground()
+        notification = builder.setNumber(callCount).build();
+        notificationManager.notify(shownNotificationId, notification);
+    }
+
+    private void configure(ConstraintsMap foregroundSettings) {
+        if (builder != null) {
+            return;
+        }
+
+        String newChannelId = foregroundSettings.getString("channelId");
+        if (!newChannelId.equals(channelId)) {
+            NotificationChannel chan = new NotificationChannel(newChannelId,
+                    foregroundSettings.getString("channelName"), NotificationManager.IMPORTANCE_NONE);
+            chan.setLockscreenVisibility(Notification.VISIBILITY_PRIVATE);
+            notificationManager.createNotificationChannel(chan);
+            channelId = newChannelId;
+        }
+
+        builder = new NotificationCompat.Builder(context, channelId);
+        builder.setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .setContentTitle(foregroundSettings.getString("notificationTitle"))
+                .setPriority(NotificationManager.IMPORTANCE_MIN)
+                .setCategory(Notification.CATEGORY_SERVICE);
+
+        if (foregroundSettings.hasKey("notificationIcon")) {
+            int smallIcon = resolveIcon(foregroundSettings.getString("notificationIcon"));
+            if (smallIcon != 0) {
+                builder.setSmallIcon(smallIcon);
+            }
+        }
+
+        notificationId = foregroundSettings.isNull("notificationId")
+                ? FOREGROUND_SERVICE_TYPE_MICROPHONE
+                : foregroundSettings.getInt("notificationId");
+        notification = null;
+        Log.d(TAG, "Configured foreground notification on channel " + channelId);
+    }
+
+    private int resolveIcon(String smallIcon) {
+        Resources res = context.getResources();
+        if (smallIcon.contains(MIPMAP)) {
+            return res.getIdentifier(smallIcon.replace(MIPMAP, ""), "mipmap", context.getPackageName());
+        } else if (smallIcon.contains(DRAWABLE)) {
+            return res.getIdentifier(smallIcon.replace(DRAWABLE, ""), "drawable", context.getPackageName());
+        }
+        return 0;
+    }
+}
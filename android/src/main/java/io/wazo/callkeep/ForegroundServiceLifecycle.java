@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package io.wazo.callkeep;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reference counts the calls that need VoiceConnectionService in the foreground.
+ *
+ * The service enters the foreground for the first call and leaves it once the last call ended,
+ * optionally after a grace period so that a quick hang-up/redial does not stop and restart it.
+ * Calls in between only update the notification.
+ */
+class ForegroundServiceLifecycle {
+    private static final String TAG = "RNCK:ForegroundLifecycle";
+
+    interface Host {
+        /**
+         * @return true if the service is now in the foreground
+         */
+        boolean enterForeground(int calls);
+
+        void exitForeground();
+
+        void onCallCountChanged(int calls);
+    }
+
+    private final Host host;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable stopRunnable = this::stopIfIdle;
+    private final Set<String> calls = new HashSet<>();
+    private boolean isForeground = false;
+    private boolean isStopPending = false;
+    private long starts = 0;
+    private long stops = 0;
+    private long cancelledStops = 0;
+
+    ForegroundServiceLifecycle(Host host) {
+        this.host = host;
+    }
+
+    synchronized void acquire(String uuid) {
+        if (!calls.add(uuid)) {
+            return;
+        }
+        if (isStopPending) {
+            handler.removeCallbacks(stopRunnable);
+            isStopPending = false;
+            cancelledStops++;
+        }
+        if (isForeground) {
+            host.onCallCountChanged(calls.size());
+            return;
+        }
+        if (host.enterForeground(calls.size())) {
+            isForeground = true;
+            starts++;
+            Log.d(TAG, "Entered foreground (starts: " + starts + ", stops: " + stops + ")");
+        }
+    }
+
+    synchronized void release(String uuid, long graceMs) {
+        if (!calls.remove(uuid)) {
+            return;
+        }
+        if (!calls.isEmpty()) {
+            if (isForeground) {
+                host.onCallCountChanged(calls.size());
+            }
+            return;
+        }
+        if (!isForeground || isStopPending) {
+            return;
+        }
+        if (graceMs > 0) {
+            isStopPending = true;
+            handler.postDelayed(stopRunnable, graceMs);
+        } else {
+            stop();
+        }
+    }
+
+    synchronized void dispose() {
+        handler.removeCallbacks(stopRunnable);
+        isStopPending = false;
+        calls.clear();
+        if (isForeground) {
+            stop();
+        }
+    }
+
+    synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("calls", calls.size());
+        stats.put("isForeground", isForeground);
+        stats.put("starts", starts);
+        stats.put("stops", stops);
+        stats.put("cancelledStops", cancelledStops);
+        return stats;
+    }
+
+    private synchronized void stopIfIdle() {
+        isStopPending = false;
+        if (calls.isEmpty() && isForeground) {
+            stop();
+        }
+    }
+
+    private void stop() {
+        host.exitForeground();
+        isForeground = false;
+        stops++;
+        Log.d(TAG, "Left foreground (starts: " + starts + ", stops: " + stops + ")");
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.wazo.callkeep.utils.BinaryMapCodec;
+
+/**
+ * Keeps the call events published while no {@link CallEventListener} is registered, e.g. an answer
+ * from the notification during a cold start from push, until the plugin replays them.
+ *
+ * The newest {@link #CAPACITY} events stay in memory. Older ones are appended to a small log in the
+ * cache directory, up to {@link #MAX_SPILL_BYTES}; anything beyond that is dropped and counted.
+ * The log only covers this process: calls do not survive the process, so a log left by a previous
+ * one is deleted instead of replayed.
+ *
+ * Not thread safe, {@link CallEventBus} serializes access.
+ */
+class PendingEventJournal {
+    private static final String TAG = "FLT:PendingEventJournal";
+    private static final String FILE_NAME = "callkeep-pending-events.log";
+    static final int CAPACITY = 64;
+    static final int MAX_SPILL_BYTES = 64 * 1024;
+
+    private final ArrayDeque<CallEvent> ring = new ArrayDeque<>(CAPACITY);
+    // Application context of the first append, to spill restored events
+    @Nullable
+    private Context context;
+    @Nullable
+    private File spillFile;
+    private boolean spillFileChecked;
+    private int spilledBytes;
+    private int spilledCount;
+    private int dropped;
+
+    void append(@NonNull Context context, @NonNull CallEvent event) {
+        if (this.context == null) {
+            this.context = context.getApplicationContext();
+        }
+        if (ring.size() == CAPACITY) {
+            spill(context, ring.removeFirst());
+        }
+        ring.addLast(event);
+    }
+
+    boolean isEmpty() {
+        return ring.isEmpty() && spilledCount == 0;
+    }
+
+    /**
+     * @return every pending event, oldest first, and empties the journal
+     */
+    @NonNull
+    List<CallEvent> drain() {
+        List<CallEvent> events = new ArrayList<>(spilledCount + ring.size());
+        if (spilledCount > 0) {
+            readSpilled(events);
+        }
+        events.addAll(ring);
+        ring.clear();
+        if (dropped > 0) {
+            Log.w(TAG, "Dropped " + dropped + " pending events");
+            dropped = 0;
+        }
+        return events;
+    }
+
+    /**
+     * Puts back drained events that were never handled, ahead of anything journaled since.
+     */
+    void restore(@NonNull List<CallEvent> events) {
+        Context appContext = context;
+        if (appContext == null) {
+            // Drained events were appended, so this only happens with nothing to restore
+            return;
+        }
+        List<CallEvent> newer = drain();
+        for (CallEvent event : events) {
+            append(appContext, event);
+        }
+        for (CallEvent event : newer) {
+            append(appContext, event);
+        }
+    }
+
+    private void spill(Context context, CallEvent event) {
+        File file = getSpillFile(context);
+        byte[] payload;
+        try {
+            payload = BinaryMapCodec.encode(toRecord(event));
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Cannot store " + event + ": " + e);
+            dropped++;
+            return;
+        }
+        if (file == null || spilledBytes + 4 + payload.length > MAX_SPILL_BYTES) {
+            dropped++;
+            return;
+        }
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(file, true))) {
+            output.writeInt(payload.length);
+            output.write(payload);
+            spilledBytes += 4 + payload.length;
+            spilledCount++;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to spill " + event + ": " + e);
+            dropped++;
+        }
+    }
+
+    private void readSpilled(List<CallEvent> events) {
+        File file = spillFile;
+        if (file == null) {
+            return;
+        }
+        try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            for (int i = 0; i < spilledCount; i++) {
+                byte[] payload = new byte[input.readInt()];
+                input.readFully(payload);
+                events.add(fromRecord(BinaryMapCodec.decode(payload)));
+            }
+        } catch (EOFException | BinaryMapCodec.FormatException e) {
+            Log.w(TAG, "Truncated pending event log: " + e);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read pending event log: " + e);
+        }
+        file.delete();
+        spilledBytes = 0;
+        spilledCount = 0;
+    }
+
+    @Nullable
+    private File getSpillFile(Context context) {
+        if (!spillFileChecked) {
+            spillFileChecked = true;
+            File file = new File(context.getApplicationContext().getCacheDir(), FILE_NAME);
+            if (file.exists() && !file.delete()) {
+                Log.w(TAG, "Cannot delete stale pending event log, spilling disabled");
+                return null;
+            }
+            spillFile = file;
+        }
+        return spillFile;
+    }
+
+    private static Map<String, Object> toRecord(CallEvent event) {
+        Map<String, Object> record = new HashMap<>();
+        record.put("action", event.getAction());
+        HashMap<String, Object> attributes = event.toAttributeMap();
+        if (attributes != null) {
+            record.put("attributes", attributes);
+        }
+        return record;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static CallEvent fromRecord(Map<String, Object> record) {
+        return CallEvent.fromAttributes((String) record.get("action"),
+                (Map<String, ?>) record.get("attributes"));
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package io.wazo.callkeep;
+
+import android.os.SystemClock;
+import android.telecom.PhoneAccount;
+import android.telecom.PhoneAccountHandle;
+import android.telecom.TelecomManager;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the PhoneAccount registered with Telecom so that method calls do not each pay for a
+ * getPhoneAccount() Binder round trip.
+ *
+ * The cache is dropped through {@link #invalidate()}: when the plugin registers the account, before
+ * the phone account settings are opened and on refreshPhoneAccount. Telecom only broadcasts account
+ * changes to the default dialer, so a VoIP app is never told when the user enables or disables
+ * the account; an entry older than the TTL is therefore still returned but refreshed in the
+ * background. Only the very first lookup after an invalidation blocks on IPC.
+ */
+class PhoneAccountCache {
+    private static final long TTL_MS = 30_000;
+
+    private static final PhoneAccountCache instance = new PhoneAccountCache();
+
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean isRefreshing = new AtomicBoolean(false);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private volatile Entry entry;
+
+    private static final class Entry {
+        final PhoneAccountHandle handle;
+        final PhoneAccount account;
+        final long loadedAt;
+
+        Entry(PhoneAccountHandle handle, PhoneAccount account, long loadedAt) {
+            this.handle = handle;
+            this.account = account;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    private PhoneAccountCache() {
+    }
+
+    static PhoneAccountCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * @return the account registered for the handle, or null when Telecom does not know it
+     */
+    @Nullable
+    PhoneAccount get(@NonNull TelecomManager telecomManager, @NonNull PhoneAccountHandle handle) {
+        Entry current = entry;
+        if (current == null || !handle.equals(current.handle)) {
+            misses.incrementAndGet();
+            return load(telecomManager, handle).account;
+        }
+        if (SystemClock.elapsedRealtime() - current.loadedAt > TTL_MS) {
+            staleHits.incrementAndGet();
+            refreshAsync(telecomManager, handle);
+        } else {
+            hits.incrementAndGet();
+        }
+        return current.account;
+    }
+
+    boolean isEnabled(@NonNull TelecomManager telecomManager, @NonNull PhoneAccountHandle handle) {
+        PhoneAccount account = get(telecomManager, handle);
+        return account != null && account.isEnabled();
+    }
+
+    synchronized void invalidate() {
+        entry = null;
+        invalidations.incrementAndGet();
+    }
+
+    Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("staleHits", staleHits.get());
+        stats.put("invalidations", invalidations.get());
+        Entry current = entry;
+        stats.put("cached", current != null);
+        stats.put("ageMs", current == null ? -1 : SystemClock.elapsedRealtime() - current.loadedAt);
+        return stats;
+    }
+
+    private Entry load(TelecomManager telecomManager, PhoneAccountHandle handle) {
+        long generation = invalidations.get();
+        Entry loaded = new Entry(handle, telecomManager.getPhoneAccount(handle), SystemClock.elapsedRealtime());
+        synchronized (this) {
+            // An invalidation during the Binder call means the result may already be outdated
+            if (generation == invalidations.get()) {
+                entry = loaded;
+            }
+        }
+        return loaded;
+    }
+
+    private void refreshAsync(final TelecomManager telecomManager, final PhoneAccountHandle handle) {
+        if (!isRefreshing.compareAndSet(false, true)) {
+            return;
+        }
+        refresher.execute(() -> {
+            try {
+                load(telecomManager, handle);
+            } finally {
+                isRefreshing.set(false);
+            }
+        });
+    }
+}
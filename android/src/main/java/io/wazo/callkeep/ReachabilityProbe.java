@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package io.wazo.callkeep;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Times the ACTION_CHECK_REACHABILITY handshake with the Dart side.
+ *
+ * An attempt ends when setReachable(true) arrives, when it is cancelled (e.g. because the app
+ * was woken up anyway) or when its timeout fires. The timeout follows an exponentially weighted
+ * moving average of past answer times, capped by the configured budget, so a warm isolate does
+ * not make an outgoing call wait for the full budget before falling back to a wakeup.
+ *
+ * A timeout counts as an answer at the timeout, which raises the next timeout. If the answer
+ * still arrives before the next attempt, it replaces that guess with its real time, so slow
+ * answers are never left out of the average.
+ */
+class ReachabilityProbe {
+    private static final String TAG = "RNCK:ReachabilityProbe";
+    static final long DEFAULT_BUDGET_MS = 2000;
+    private static final long MIN_TIMEOUT_MS = 300;
+    private static final double EWMA_WEIGHT = 0.3;
+    // Timeout = estimate * factor + margin, to tolerate slower answers than the average
+    private static final double TIMEOUT_FACTOR = 2;
+    private static final long TIMEOUT_MARGIN_MS = 150;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable timeoutRunnable = this::onTimeout;
+    private double latencyEstimateMs = -1;
+    private long attemptStartedAt = 0;
+    private long attemptTimeoutMs = 0;
+    private int attempt = 0;
+    private boolean isActive = false;
+    private Runnable timeoutAction = null;
+    // Set when the last attempt timed out, until its late answer or the next attempt
+    private boolean awaitingLateAnswer = false;
+    private double estimateBeforeTimeoutMs = -1;
+
+    /**
+     * Starts an attempt, or joins the running one.
+     *
+     * @param onTimeout run on the main thread if Dart did not answer in time, null to only measure
+     *                  the answer time
+     */
+    synchronized void start(long budgetMs, @Nullable Runnable onTimeout) {
+        if (isActive) {
+            Log.d(TAG, "Attempt " + attempt + " already running");
+            if (timeoutAction == null) {
+                timeoutAction = onTimeout;
+            }
+            return;
+        }
+        isActive = true;
+        awaitingLateAnswer = false;
+        attempt++;
+        attemptStartedAt = SystemClock.elapsedRealtime();
+        attemptTimeoutMs = timeoutFor(budgetMs);
+        timeoutAction = onTimeout;
+        handler.postDelayed(timeoutRunnable, attemptTimeoutMs);
+        Log.d(TAG, "Attempt " + attempt + " started, timeout " + attemptTimeoutMs + "ms");
+    }
+
+    /**
+     * Called when Dart reported itself reachable.
+     */
+    synchronized void onReachable() {
+        if (!isActive && !awaitingLateAnswer) {
+            return;
+        }
+        long latency = SystemClock.elapsedRealtime() - attemptStartedAt;
+        if (awaitingLateAnswer) {
+            // Replace the guess made at the timeout with the real answer time
+            awaitingLateAnswer = false;
+            latencyEstimateMs = estimateBeforeTimeoutMs;
+        }
+        record(latency);
+        finish();
+        Log.d(TAG, "Attempt " + attempt + " answered in " + latency + "ms, estimate "
+                + Math.round(latencyEstimateMs) + "ms");
+    }
+
+    /**
+     * Ends the running attempt without waiting for Dart, its timeout action will not run.
+     */
+    synchronized void cancel(String reason) {
+        if (!isActive) {
+            return;
+        }
+        finish();
+        Log.d(TAG, "Attempt " + attempt + " cancelled after "
+                + (SystemClock.elapsedRealtime() - attemptStartedAt) + "ms: " + reason);
+    }
+
+    synchronized long timeoutFor(long budgetMs) {
+        if (latencyEstimateMs < 0) {
+            return budgetMs;
+        }
+        long adaptive = Math.round(latencyEstimateMs * TIMEOUT_FACTOR) + TIMEOUT_MARGIN_MS;
+        return Math.min(budgetMs, Math.max(MIN_TIMEOUT_MS, adaptive));
+    }
+
+    private void onTimeout() {
+        Runnable action;
+        synchronized (this) {
+            if (!isActive) {
+                return;
+            }
+            action = timeoutAction;
+            finish();
+            awaitingLateAnswer = true;
+            estimateBeforeTimeoutMs = latencyEstimateMs;
+            record(attemptTimeoutMs);
+            Log.d(TAG, "Attempt " + attempt + " timed out after " + attemptTimeoutMs + "ms");
+        }
+        if (action != null) {
+            action.run();
+        }
+    }
+
+    private void record(long latency) {
+        latencyEstimateMs = latencyEstimateMs < 0
+                ? latency
+                : EWMA_WEIGHT * latency + (1 - EWMA_WEIGHT) * latencyEstimateMs;
+    }
+
+    private void finish() {
+        isActive = false;
+        timeoutAction = null;
+        handler.removeCallbacks(timeoutRunnable);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package io.wazo.callkeep;
+
+import static io.wazo.callkeep.CallKeepConstants.BROADCAST_RECEIVER_META_DATA_KEY;
+import static io.wazo.callkeep.CallKeepConstants.HOLD_SUPPORT_DATA_KEY;
+
+import android.os.Bundle;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * The manifest meta-data of VoiceConnectionService, parsed once per service instance.
+ */
+final class ServiceMetadata {
+    private static final String TAG = "RNCK:ServiceMetadata";
+
+    private final Class<?> broadcastReceiver;
+    private final boolean isHoldSupported;
+
+    private ServiceMetadata(@Nullable Class<?> broadcastReceiver, boolean isHoldSupported) {
+        this.broadcastReceiver = broadcastReceiver;
+        this.isHoldSupported = isHoldSupported;
+    }
+
+    @NonNull
+    static ServiceMetadata from(@Nullable Bundle metaData) {
+        if (metaData == null) {
+            return new ServiceMetadata(null, false);
+        }
+        Class<?> receiver = null;
+        String receiverName = metaData.getString(BROADCAST_RECEIVER_META_DATA_KEY);
+        if (receiverName != null) {
+            try {
+                receiver = Class.forName(receiverName);
+            } catch (ClassNotFoundException e) {
+                Log.e(TAG, "Broadcast receiver " + receiverName + " not found", e);
+            }
+        }
+        return new ServiceMetadata(receiver, metaData.getBoolean(HOLD_SUPPORT_DATA_KEY, false));
+    }
+
+    /**
+     * @return the class declared with {@link CallKeepConstants#BROADCAST_RECEIVER_META_DATA_KEY},
+     * or null when none is declared or it could not be loaded
+     */
+    @Nullable
+    Class<?> getBroadcastReceiver() {
+        return broadcastReceiver;
+    }
+
+    boolean isHoldSupported() {
+        return isHoldSupported;
+    }
+}
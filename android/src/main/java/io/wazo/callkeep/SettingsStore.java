@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import io.wazo.callkeep.utils.BinaryMapCodec;
+import io.wazo.callkeep.utils.MapUtils;
+
+/**
+ * Persists the CallKeep settings in a small versioned binary file instead of JSON in
+ * SharedPreferences.
+ *
+ * Cold starts (e.g. a push waking a dead app) memory-map the file and decode it directly. Writes
+ * are skipped when the encoded bytes did not change, and otherwise go to a temporary file that is
+ * renamed over the previous one, so a crash never leaves a half written file behind.
+ */
+class SettingsStore {
+    private static final String TAG = "FLT:SettingsStore";
+    private static final String FILE_NAME = "callkeep-settings.bin";
+    private static final String ACCOUNT_FILE_NAME = "callkeep-account.bin";
+    private static final String LEGACY_PREFERENCES = "settings-callkeep";
+    private static final int MAGIC = 0x434b5354; // "CKST"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    private static final int ACCOUNT_MAGIC = 0x434b4143; // "CKAC"
+    private static final int ACCOUNT_FILE_SIZE = 12;
+
+    private static SettingsStore instance;
+
+    private final File file;
+    private final File accountFile;
+    private final Context context;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+    private byte[] lastWritten;
+
+    private SettingsStore(Context context) {
+        this.context = context;
+        this.file = new File(context.getFilesDir(), FILE_NAME);
+        this.accountFile = new File(context.getFilesDir(), ACCOUNT_FILE_NAME);
+    }
+
+    static synchronized SettingsStore getInstance(@NonNull Context context) {
+        if (instance == null) {
+            instance = new SettingsStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * @return the stored settings, an empty map when nothing was stored yet
+     */
+    @NonNull
+    synchronized HashMap<String, Object> load() {
+        if (file.exists()) {
+            try {
+                return read();
+            } catch (IOException | BinaryMapCodec.FormatException e) {
+                Log.w(TAG, "Discarding unreadable settings file: " + e);
+            }
+        }
+        HashMap<String, Object> legacy = loadLegacy();
+        if (!legacy.isEmpty()) {
+            migrate(legacy);
+        }
+        return legacy;
+    }
+
+    /**
+     * Writes the legacy settings to the file, and only clears the SharedPreferences once the file
+     * is on disk: a failed write or a process death leaves them to be migrated again next time.
+     */
+    private void migrate(@NonNull Map<String, Object> legacy) {
+        final byte[] payload;
+        try {
+            payload = BinaryMapCodec.encode(legacy);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Legacy settings not migrated: " + e);
+            return;
+        }
+        lastWritten = payload;
+        writer.execute(() -> {
+            if (write(payload)) {
+                context.getSharedPreferences(LEGACY_PREFERENCES, Context.MODE_PRIVATE).edit().clear().apply();
+            }
+        });
+    }
+
+    /**
+     * Encodes the settings on the calling thread and writes them in the background if they differ
+     * from what is already on disk.
+     */
+    synchronized void save(@NonNull Map<String, Object> settings) {
+        final byte[] payload;
+        try {
+            payload = BinaryMapCodec.encode(settings);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Settings not stored: " + e);
+            return;
+        }
+        if (Arrays.equals(payload, lastWritten)) {
+            return;
+        }
+        lastWritten = payload;
+        writer.execute(() -> write(payload));
+    }
+
+    /**
+     * Fingerprint of the last PhoneAccount registered with Telecom, see
+     * {@link CallKeepModule#displayIncomingCall}.
+     *
+     * @return the stored fingerprint, or 0 when the account was never registered
+     */
+    synchronized long loadAccountFingerprint() {
+        if (!accountFile.exists()) {
+            return 0;
+        }
+        try (FileInputStream input = new FileInputStream(accountFile)) {
+            byte[] bytes = new byte[ACCOUNT_FILE_SIZE];
+            if (input.read(bytes) != ACCOUNT_FILE_SIZE) {
+                return 0;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            return buffer.getInt() == ACCOUNT_MAGIC ? buffer.getLong() : 0;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read account fingerprint: " + e);
+            return 0;
+        }
+    }
+
+    synchronized void saveAccountFingerprint(final long fingerprint) {
+        writer.execute(() -> {
+            ByteBuffer buffer = ByteBuffer.allocate(ACCOUNT_FILE_SIZE);
+            buffer.putInt(ACCOUNT_MAGIC).putLong(fingerprint);
+            writeAtomically(accountFile, buffer.array());
+        });
+    }
+
+    private HashMap<String, Object> read() throws IOException, BinaryMapCodec.FormatException {
+        try (FileInputStream input = new FileInputStream(file); FileChannel channel = input.getChannel()) {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                throw new BinaryMapCodec.FormatException("File too small");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != MAGIC) {
+                throw new BinaryMapCodec.FormatException("Bad magic");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new BinaryMapCodec.FormatException("Unsupported version " + version);
+            }
+            int length = buffer.getInt();
+            if (length != size - HEADER_SIZE) {
+                throw new BinaryMapCodec.FormatException("Length mismatch");
+            }
+            ByteBuffer payload = buffer.slice();
+            HashMap<String, Object> settings = BinaryMapCodec.decode(payload);
+            synchronized (this) {
+                if (lastWritten == null) {
+                    byte[] bytes = new byte[length];
+                    ((ByteBuffer) buffer.position(HEADER_SIZE)).get(bytes);
+                    lastWritten = bytes;
+                }
+            }
+            return settings;
+        }
+    }
+
+    private boolean write(byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(payload.length).put(payload);
+        if (writeAtomically(file, buffer.array())) {
+            return true;
+        }
+        synchronized (this) {
+            // Not on disk, so the next save of the same settings must not be skipped
+            if (lastWritten == payload) {
+                lastWritten = null;
+            }
+        }
+        return false;
+    }
+
+    private static boolean writeAtomically(File target, byte[] bytes) {
+        File tmp = new File(target.getPath() + ".tmp");
+        try (FileOutputStream output = new FileOutputStream(tmp)) {
+            output.write(bytes);
+            output.getFD().sync();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + target.getName() + ": " + e);
+            tmp.delete();
+            return false;
+        }
+        if (!tmp.renameTo(target)) {
+            Log.w(TAG, "Failed to replace " + target.getName());
+            tmp.delete();
+            return false;
+        }
+        return true;
+    }
+
+    private HashMap<String, Object> loadLegacy() {
+        SharedPreferences sharedPref = context.getSharedPreferences(LEGACY_PREFERENCES, Context.MODE_PRIVATE);
+        String jsonString = sharedPref.getString("settings", null);
+        if (jsonString == null) {
+            return new HashMap<>();
+        }
+        try {
+            return new HashMap<>(MapUtils.convertJsonToMap(new JSONObject(jsonString)).toMap());
+        } catch (JSONException e) {
+            Log.w(TAG, "Failed to migrate legacy settings: " + e);
+            return new HashMap<>();
+        }
+    }
+}
@@ -19,43 +19,80 @@ package io.wazo.callkeep;
 
 import android.telecom.Conference;
 import android.telecom.Connection;
+import android.telecom.DisconnectCause;
 import android.telecom.PhoneAccountHandle;
 
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.UUID;
+
+/**
+ * A conference between {@link VoiceConnection}s, created and fed by {@link ConferenceManager}.
+ *
+ * Hold, unhold and disconnect are applied to every leg so that each one reports its own event to
+ * Flutter, which owns the media and has to mix or pause it.
+ */
 public class VoiceConference extends Conference {
+    private final String conferenceId = UUID.randomUUID().toString();
+    private final ConferenceManager manager;
 
-    VoiceConference(PhoneAccountHandle phoneAccountHandle) {
+    VoiceConference(PhoneAccountHandle phoneAccountHandle, @NonNull ConferenceManager manager) {
         super(phoneAccountHandle);
-        this.setActive();
-//        this.setConnectionCapabilities(Connection.CAPABILITY_MUTE | Connection.CAPABILITY_HOLD | Connection.CAPABILITY_SUPPORT_HOLD);
+        this.manager = manager;
+        setConnectionCapabilities(Connection.CAPABILITY_MUTE
+                | Connection.CAPABILITY_HOLD
+                | Connection.CAPABILITY_SUPPORT_HOLD
+                | Connection.CAPABILITY_MANAGE_CONFERENCE);
+        setActive();
+    }
+
+    String getConferenceId() {
+        return conferenceId;
     }
 
     @Override
     public void onMerge() {
-        super.onMerge();
+        manager.mergeAll(this);
     }
 
     @Override
-    public void onSeparate(Connection connection) {
-        super.onSeparate(connection);
+    public void onMerge(Connection connection) {
+        manager.join(this, connection);
     }
 
     @Override
-    public void onDisconnect() {
-        super.onDisconnect();
+    public void onSeparate(Connection connection) {
+        manager.separate(this, connection);
     }
 
     @Override
-    public void onConnectionAdded(Connection connection) {
-        super.onConnectionAdded(connection);
+    public void onDisconnect() {
+        manager.disconnect(this);
     }
 
     @Override
     public void onHold() {
-        super.onHold();
+        for (Connection connection : new ArrayList<>(getConnections())) {
+            if (connection.getState() != Connection.STATE_HOLDING) {
+                connection.onHold();
+            }
+        }
+        setOnHold();
     }
 
     @Override
     public void onUnhold() {
-        super.onUnhold();
+        for (Connection connection : new ArrayList<>(getConnections())) {
+            if (connection.getState() == Connection.STATE_HOLDING) {
+                connection.onUnhold();
+            }
+        }
+        setActive();
+    }
+
+    void close(int causeCode) {
+        setDisconnected(new DisconnectCause(causeCode));
+        destroy();
     }
 }
@@ -18,26 +18,17 @@
 package io.wazo.callkeep;
 
 import static io.wazo.callkeep.CallKeepConstants.ACTION_ANSWER_CALL;
-import static io.wazo.callkeep.CallKeepConstants.ACTION_AUDIO_CALL;
 import static io.wazo.callkeep.CallKeepConstants.ACTION_AUDIO_SESSION;
-import static io.wazo.callkeep.CallKeepConstants.ACTION_DTMF_TONE;
 import static io.wazo.callkeep.CallKeepConstants.ACTION_END_CALL;
 import static io.wazo.callkeep.CallKeepConstants.ACTION_HOLD_CALL;
 import static io.wazo.callkeep.CallKeepConstants.ACTION_INCOMING_CALL;
-import static io.wazo.callkeep.CallKeepConstants.ACTION_MUTE_CALL;
 import static io.wazo.callkeep.CallKeepConstants.ACTION_REJECT_CALL;
 import static io.wazo.callkeep.CallKeepConstants.ACTION_UNHOLD_CALL;
-import static io.wazo.callkeep.CallKeepConstants.ACTION_UNMUTE_CALL;
-import static io.wazo.callkeep.CallKeepConstants.EXTRA_CALLER_NAME;
 import static io.wazo.callkeep.CallKeepConstants.EXTRA_CALL_ATTRIB;
-import static io.wazo.callkeep.CallKeepConstants.EXTRA_CALL_NUMBER;
-import static io.wazo.callkeep.CallKeepConstants.EXTRA_CALL_UUID;
 
 import android.content.Context;
-import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
-import android.os.Handler;
 import android.telecom.CallAudioState;
 import android.telecom.Connection;
 import android.telecom.DisconnectCause;
@@ -46,95 +37,114 @@ import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
-import java.util.HashMap;
 import java.util.Map;
-import java.util.Objects;
 
 public class VoiceConnection extends Connection {
     private static final String TAG = "RNCK:VoiceConnection";
-    private final HashMap<String, Object> connectionData;
+    private volatile CallInfo callInfo;
     private final Context context;
+    private final CallStateMachine stateMachine;
+    private final AudioRouteManager audioRouteManager;
 
-    VoiceConnection(@NonNull Context context, @NonNull HashMap<String, Object> connectionData) {
+    VoiceConnection(@NonNull Context context, @NonNull CallInfo callInfo) {
         super();
-        this.connectionData = connectionData;
+        this.callInfo = callInfo;
         this.context = context;
+        this.stateMachine = new CallStateMachine(callInfo.getUuid());
+        this.audioRouteManager = new AudioRouteManager(callInfo.getUuid(), this, this::onAudioStateSettled);
         updateDisplay();
     }
 
     public void updateDisplay(String callerName, String handle) {
         if (handle != null) {
-            connectionData.put(EXTRA_CALL_NUMBER, handle);
+            callInfo = callInfo.withHandle(handle);
+            VoiceConnectionService.getCallRegistry().updateHandle(getUuid(), this, handle);
         }
         if (callerName != null) {
-            connectionData.put(EXTRA_CALLER_NAME, callerName);
+            callInfo = callInfo.withCallerName(callerName);
         }
         updateDisplay();
     }
 
     private void updateDisplay() {
-        Object address = connectionData.get(EXTRA_CALL_NUMBER);
-        Object name = connectionData.get(EXTRA_CALLER_NAME);
-        if (address instanceof String) {
-            setAddress(Uri.parse((String) address), TelecomManager.PRESENTATION_ALLOWED);
+        CallInfo info = callInfo;
+        if (info.getHandle() != null) {
+            setAddress(Uri.parse(info.getHandle()), TelecomManager.PRESENTATION_ALLOWED);
         }
-        if (name instanceof String) {
-            setCallerDisplayName((String) name, TelecomManager.PRESENTATION_ALLOWED);
+        if (info.getCallerName() != null) {
+            setCallerDisplayName(info.getCallerName(), TelecomManager.PRESENTATION_ALLOWED);
+        }
+    }
+
+    String getUuid() {
+        return callInfo.getUuid();
+    }
+
+    @NonNull
+    public CallInfo getCallInfo() {
+        return callInfo;
+    }
+
+    void ring() {
+        if (stateMachine.ring()) {
+            setRinging();
+        }
+    }
+
+    void dial() {
+        if (stateMachine.dial()) {
+            setDialing();
         }
     }
 
+    @Override
+    public void onStateChanged(int state) {
+        super.onStateChanged(state);
+        VoiceConnectionService.getCallRegistry().updateState(getUuid(), this, state);
+    }
+
     @Override
     public void onExtrasChanged(Bundle extras) {
         super.onExtrasChanged(extras);
         Map<String, String> attributeMap = (Map<String, String>) extras.getSerializable(EXTRA_CALL_ATTRIB);
         if (attributeMap != null) {
-            connectionData.putAll(attributeMap);
+            callInfo = callInfo.merge(attributeMap);
         }
     }
 
     public void setMuted(boolean muted) {
-        CallAudioState currentAudioState = getCurrentAudioState();
-        CallAudioState newAudioState = new CallAudioState(muted,
-                currentAudioState.getRoute(),
-                currentAudioState.getSupportedRouteMask()
-        );
-        onCallAudioStateChanged(newAudioState);
+        audioRouteManager.requestMuted(muted);
     }
 
-    public void setAudio(Integer audioRoute) {
-        CallAudioState currentAudioState = getCurrentAudioState();
-        CallAudioState newAudioState = new CallAudioState(
-                currentAudioState.isMuted(),
-                audioRoute,
-                currentAudioState.getSupportedRouteMask()
-        );
-        onCallAudioStateChanged(newAudioState);
+    /**
+     * @param audioRoute one CallAudioState.ROUTE_* value, applied through Telecom
+     * @return false when the route is not supported by the call
+     */
+    public boolean setAudio(int audioRoute) {
+        return audioRouteManager.requestRoute(audioRoute);
+    }
+
+    /**
+     * @return {muted, audioRoute, supportedRouteMask}, or null before Telecom reported a state
+     */
+    @Nullable
+    Map<String, Object> getAudioRouteState() {
+        return audioRouteManager.getState();
     }
 
     @Override
     public void onCallAudioStateChanged(CallAudioState state) {
         super.onCallAudioStateChanged(state);
         if (state != null) {
-            if (!Objects.equals(connectionData.get("isMuted"), state.isMuted())) {
-                connectionData.put("isMuted", state.isMuted());
-                sendCallRequestToActivity(state.isMuted() ? ACTION_MUTE_CALL : ACTION_UNMUTE_CALL, connectionData);
-            }
-            if (!Objects.equals(connectionData.get("audioRoute"), state.getRoute())) {
-                connectionData.put("audioRoute", state.getRoute());
-                HashMap<String, Object> data = new HashMap<>(connectionData);
-                data.put("audioRoute", state.getRoute());
-                data.put("audioRouteName", CallAudioState.audioRouteToString(state.getRoute()));
-                sendCallRequestToActivity(ACTION_AUDIO_CALL, data);
-            }
+            stateMachine.onAudioState();
+            audioRouteManager.onAudioStateChanged(state);
         }
     }
 
-    private CallAudioState getCurrentAudioState() {
-        CallAudioState current = getCallAudioState();
-        if (current != null) return current;
-        throw new UnsupportedOperationException();
+    private void onAudioStateSettled(CallAudioState state, boolean muteChanged) {
+        callInfo = callInfo.withAudioState(state.isMuted(), state.getRoute(), state.getSupportedRouteMask());
+        publish(CallEvent.audioState(callInfo, muteChanged));
     }
 
     @Override
@@ -153,41 +163,44 @@ public class VoiceConnection extends Connection {
     }
 
     private void onAnswered() {
+        if (!stateMachine.answer()) {
+            return;
+        }
         initCall();
-        setCurrent();
-        sendCallRequestToActivity(ACTION_ANSWER_CALL, connectionData);
+        setHoldableIfSupported();
+        setActive();
+        sendCallRequestToActivity(ACTION_ANSWER_CALL);
     }
 
     public void initCall() {
         setHoldableIfSupported();
         setAudioModeIsVoip(true);
-        sendCallRequestToActivity(ACTION_AUDIO_SESSION, connectionData);
+        sendCallRequestToActivity(ACTION_AUDIO_SESSION);
     }
 
     @Override
     public void onShowIncomingCallUi() {
-        sendCallRequestToActivity(ACTION_INCOMING_CALL, connectionData);
+        sendCallRequestToActivity(ACTION_INCOMING_CALL);
         super.onShowIncomingCallUi();
     }
 
     @Override
     public void onPlayDtmfTone(char dtmf) {
-        HashMap<String, Object> data = new HashMap<>(connectionData);
-        data.put("DTMF", Character.toString(dtmf));
-        sendCallRequestToActivity(ACTION_DTMF_TONE, data);
+        publish(CallEvent.dtmf(callInfo, Character.toString(dtmf)));
     }
 
     @Override
     public void onDisconnect() {
         super.onDisconnect();
-        close(DisconnectCause.LOCAL);
-        sendCallRequestToActivity(ACTION_END_CALL, connectionData);
+        if (close(DisconnectCause.LOCAL)) {
+            sendCallRequestToActivity(ACTION_END_CALL);
+        }
         Log.d(TAG, "onDisconnect executed");
     }
 
     public void reportDisconnect(int reason, boolean notify) {
         super.onDisconnect();
-        Integer causeCode = null;
+        int causeCode;
         switch (reason) {
             case 1:
                 causeCode = DisconnectCause.ERROR;
@@ -206,43 +219,51 @@ public class VoiceConnection extends Connection {
                 causeCode = DisconnectCause.MISSED;
                 break;
             default:
+                Log.w(TAG, "reportDisconnect: unknown reason " + reason + " for " + getUuid());
+                causeCode = DisconnectCause.UNKNOWN;
                 break;
         }
-        if (causeCode != null) {
-            close(causeCode);
-            if (notify) {
-                sendCallRequestToActivity(ACTION_END_CALL, connectionData);
-            }
+        if (close(causeCode) && notify) {
+            sendCallRequestToActivity(ACTION_END_CALL);
         }
     }
 
     @Override
     public void onAbort() {
         super.onAbort();
-        close(DisconnectCause.REJECTED);
-        sendCallRequestToActivity(ACTION_END_CALL, connectionData);
+        if (close(DisconnectCause.REJECTED)) {
+            sendCallRequestToActivity(ACTION_END_CALL);
+        }
         Log.d(TAG, "onAbort executed");
     }
 
     @Override
     public void onHold() {
+        if (!stateMachine.hold()) {
+            return;
+        }
         super.onHold();
         this.setOnHold();
-        sendCallRequestToActivity(ACTION_HOLD_CALL, connectionData);
+        sendCallRequestToActivity(ACTION_HOLD_CALL);
     }
 
     @Override
     public void onUnhold() {
+        if (!stateMachine.unhold()) {
+            return;
+        }
         super.onUnhold();
-        sendCallRequestToActivity(ACTION_UNHOLD_CALL, connectionData);
-        setCurrent();
+        sendCallRequestToActivity(ACTION_UNHOLD_CALL);
+        setHoldableIfSupported();
+        setActive();
     }
 
     @Override
     public void onReject() {
         super.onReject();
-        close(DisconnectCause.REJECTED);
-        sendCallRequestToActivity(ACTION_REJECT_CALL, connectionData);
+        if (close(DisconnectCause.REJECTED)) {
+            sendCallRequestToActivity(ACTION_REJECT_CALL);
+        }
         Log.d(TAG, "onReject executed");
     }
 
@@ -252,6 +273,9 @@ public class VoiceConnection extends Connection {
     }
 
     public void setCurrent() {
+        if (!stateMachine.activate()) {
+            return;
+        }
         setHoldableIfSupported();
         setActive();
     }
@@ -262,26 +286,37 @@ public class VoiceConnection extends Connection {
         }
     }
 
-    private void close(int causeCode) {
+    /**
+     * @return false when the call was already closed
+     */
+    private boolean close(int causeCode) {
+        if (!stateMachine.disconnect()) {
+            return false;
+        }
         setDisconnected(new DisconnectCause(causeCode));
-        VoiceConnectionService.deinitConnection((String) connectionData.get(EXTRA_CALL_UUID));
+        audioRouteManager.close();
+        WakeLockManager.getInstance(context).release(getUuid());
+        VoiceConnectionService.deinitConnection(getUuid());
         destroy();
+        return true;
     }
 
     /*
      * Send call request to the RNCallKeepModule
      */
-    private void sendCallRequestToActivity(String action, @Nullable HashMap<String, Object> attributeMap) {
-        final Handler handler = new Handler();
-        handler.post(() -> {
-            Intent intent = new Intent(action);
-            if (attributeMap != null) {
-                Bundle extras = new Bundle();
-                extras.putSerializable(EXTRA_CALL_ATTRIB, attributeMap);
-                intent.putExtras(extras);
-            }
-            LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
-        });
+    private void sendCallRequestToActivity(String action) {
+        publish(CallEvent.of(action, callInfo));
+    }
+
+    /**
+     * @param conferenceId the conference this call joined, or null when it left its conference
+     */
+    void publishConferenceChanged(String conferenceId) {
+        publish(CallEvent.conference(callInfo, conferenceId));
+    }
+
+    private void publish(CallEvent event) {
+        CallEventBus.publish(context, event);
     }
 
 
@@ -19,32 +19,22 @@ package io.wazo.callkeep;
 
 import static io.wazo.callkeep.CallKeepConstants.ACTION_CHECK_REACHABILITY;
 import static io.wazo.callkeep.CallKeepConstants.ACTION_FAILED_CALL;
-import static io.wazo.callkeep.CallKeepConstants.ACTION_ONGOING_CALL;
 import static io.wazo.callkeep.CallKeepConstants.ACTION_WAKEUP_CALL;
-import static io.wazo.callkeep.CallKeepConstants.BROADCAST_RECEIVER_META_DATA_KEY;
 import static io.wazo.callkeep.CallKeepConstants.EXTRA_CALLER_NAME;
 import static io.wazo.callkeep.CallKeepConstants.EXTRA_CALL_ATTRIB;
 import static io.wazo.callkeep.CallKeepConstants.EXTRA_CALL_NUMBER;
 import static io.wazo.callkeep.CallKeepConstants.EXTRA_CALL_UUID;
-import static io.wazo.callkeep.CallKeepConstants.FOREGROUND_SERVICE_TYPE_MICROPHONE;
-import static io.wazo.callkeep.CallKeepConstants.HOLD_SUPPORT_DATA_KEY;
 
-import android.app.ActivityManager;
-import android.app.ActivityManager.RunningTaskInfo;
 import android.app.Notification;
-import android.app.NotificationChannel;
-import android.app.NotificationManager;
 import android.app.Service;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.content.pm.ServiceInfo;
-import android.content.res.Resources;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
 import android.telecom.Connection;
 import android.telecom.ConnectionRequest;
 import android.telecom.ConnectionService;
@@ -54,37 +44,66 @@ import android.telecom.PhoneAccountHandle;
 import android.telecom.TelecomManager;
 import android.util.Log;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
-import androidx.core.app.NotificationCompat;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import io.wazo.callkeep.utils.ConstraintsMap;
 
 // @see https://github.com/kbagchiGWC/voice-quickstart-android/blob/9a2aff7fbe0d0a5ae9457b48e9ad408740dfb968/exampleConnectionService/src/main/java/com/twilio/voice/examples/connectionservice/VoiceConnectionService.java
 public class VoiceConnectionService extends ConnectionService {
-    private static Boolean isAvailable;
-    private static Boolean isInitialized;
-    private static Boolean isReachable;
-    private static PhoneAccountHandle phoneAccountHandle = null;
+    private static volatile Boolean isAvailable;
+    private static volatile Boolean isInitialized;
+    private static volatile Boolean isReachable;
+    private static volatile PhoneAccountHandle phoneAccountHandle = null;
+    private static final ReachabilityProbe reachabilityProbe = new ReachabilityProbe();
     private static final String TAG = "RNCK:VoiceConnectionService";
-    private static final Map<String, VoiceConnection> currentConnections = new HashMap<>();
-    public static Boolean hasOutgoingCall = false;
+    private static final CallRegistry<VoiceConnection> currentConnections = new CallRegistry<>();
+    // Derived from outgoingCalls, true while at least one outgoing call is registered
+    public static volatile Boolean hasOutgoingCall = false;
+    private static final Set<String> outgoingCalls = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
     public static VoiceConnectionService currentConnectionService = null;
+    private volatile ForegroundNotificationManager foregroundNotificationManager;
+    private ServiceMetadata serviceMetadata;
+    // Created on M+, where ConnectionService is used at all
+    private ConferenceManager conferenceManager;
+    private final ForegroundServiceLifecycle foregroundLifecycle = new ForegroundServiceLifecycle(new ForegroundServiceLifecycle.Host() {
+        @Override
+        public boolean enterForeground(int calls) {
+            return startForegroundService(calls);
+        }
 
-    public static VoiceConnection getConnection(String connectionId) {
-        if (currentConnections.containsKey(connectionId)) {
-            return currentConnections.get(connectionId);
+        @Override
+        public void exitForeground() {
+            stopForegroundService();
         }
-        return null;
+
+        @Override
+        public void onCallCountChanged(int calls) {
+            if (foregroundNotificationManager != null) {
+                foregroundNotificationManager.updateCallCount(calls);
+            }
+        }
+    });
+    private final CallAdmission<VoiceConnection> callAdmission = new CallAdmission<>(currentConnections, foregroundLifecycle);
+
+    public static VoiceConnection getConnection(String connectionId) {
+        return currentConnections.get(connectionId);
+    }
+
+    static CallRegistry<VoiceConnection> getCallRegistry() {
+        return currentConnections;
     }
 
     public static ConstraintsMap getSettings(@Nullable Context context) {
@@ -99,14 +118,56 @@ public class VoiceConnectionService extends ConnectionService {
         return settings.getMap("foregroundService");
     }
 
+    /**
+     * Called by the settings listener when the "foregroundService" settings changed.
+     */
+    static void onForegroundSettingsChanged(@Nullable ConstraintsMap foregroundSettings) {
+        VoiceConnectionService service = currentConnectionService;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O || service == null
+                || service.foregroundNotificationManager == null) {
+            return;
+        }
+        if (foregroundSettings == null) {
+            service.foregroundNotificationManager.invalidate();
+        } else {
+            service.foregroundNotificationManager.refresh(foregroundSettings);
+        }
+    }
+
     public static List<String> getActiveConnections() {
-        return new ArrayList<>(currentConnections.keySet());
+        return new ArrayList<>(currentConnections.uuids());
+    }
+
+    /**
+     * @param state one of the Connection.STATE_* values
+     * @return the UUIDs of the calls in that state, from the registry index
+     */
+    public static List<String> getConnectionsInState(int state) {
+        return uuidsOf(currentConnections.inState(state));
+    }
+
+    /**
+     * @return the UUIDs of the calls with that remote handle, from the registry index
+     */
+    public static List<String> getConnectionsWithHandle(String handle) {
+        return uuidsOf(currentConnections.withHandle(handle));
+    }
+
+    private static List<String> uuidsOf(Collection<VoiceConnection> connections) {
+        List<String> uuids = new ArrayList<>(connections.size());
+        for (VoiceConnection connection : connections) {
+            uuids.add(connection.getUuid());
+        }
+        return uuids;
+    }
+
+    static boolean hasActiveConnections() {
+        return !currentConnections.isEmpty();
     }
 
     public static void endAllCalls() {
-        Map<String, VoiceConnection> connectionMap = new HashMap<>(currentConnections);
-        for (Map.Entry<String, VoiceConnection> connectionEntry : connectionMap.entrySet()) {
-            Connection connectionToEnd = connectionEntry.getValue();
+        // The registry view is weakly consistent, so calls removing themselves while we iterate are fine
+        for (VoiceConnection connectionToEnd : currentConnections.calls()) {
             connectionToEnd.onDisconnect();
         }
     }
@@ -123,9 +184,22 @@ public class VoiceConnectionService extends ConnectionService {
     @Override
     public void onCreate() {
         super.onCreate();
+        AppForegroundTracker.install(this);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            conferenceManager = new ConferenceManager(this);
+        }
         checkReachability();
     }
 
+    @Override
+    public void onDestroy() {
+        foregroundLifecycle.dispose();
+        CallKeepModule.flushSettings();
+        // Telecom only unbinds once every call is gone, nothing is left for the locks to cover
+        WakeLockManager.getInstance(this).releaseAll();
+        super.onDestroy();
+    }
+
     public static void setPhoneAccountHandle(PhoneAccountHandle phoneAccountHandle) {
         VoiceConnectionService.phoneAccountHandle = phoneAccountHandle;
     }
@@ -143,29 +217,79 @@ public class VoiceConnectionService extends ConnectionService {
     public static void setReachable(Boolean value) {
         Log.d(TAG, "setReachable");
         isReachable = value;
+        if (Boolean.TRUE.equals(value)) {
+            reachabilityProbe.onReachable();
+        }
     }
 
     public static void deinitConnection(String connectionId) {
         Log.d(TAG, "deinitConnection:" + connectionId);
-        VoiceConnectionService.hasOutgoingCall = false;
+        currentConnections.remove(connectionId);
+        setOutgoingCall(connectionId, false);
+        if (currentConnections.isEmpty()) {
+            CallKeepBackgroundMessagingService.onCallsEnded();
+        }
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-            currentConnectionService.stopForegroundService();
+        VoiceConnectionService service = currentConnectionService;
+        if (service != null) {
+            if (service.conferenceManager != null) {
+                service.conferenceManager.remove(connectionId);
+            }
+            service.foregroundLifecycle.release(connectionId, getForegroundStopGraceMs(service));
         }
+    }
 
-        currentConnections.remove(connectionId);
+    /**
+     * @return the active conference, see {@link ConferenceManager#getState()}, or null
+     */
+    static Map<String, Object> getConferenceState() {
+        VoiceConnectionService service = currentConnectionService;
+        if (service == null || service.conferenceManager == null) {
+            return null;
+        }
+        return service.conferenceManager.getState();
     }
 
-    private ConstraintsMap getMetadataSettings() {
-        try {
-            Bundle metaData = getMetaData();
-            if (metaData != null) {
-                return new ConstraintsMap(bundleToMap(metaData));
+    static Map<String, Object> getForegroundStats() {
+        VoiceConnectionService service = currentConnectionService;
+        return service == null ? new HashMap<String, Object>() : service.foregroundLifecycle.getStats();
+    }
+
+    private static void setOutgoingCall(String uuid, boolean outgoing) {
+        if (uuid == null) {
+            return;
+        }
+        if (outgoing) {
+            outgoingCalls.add(uuid);
+        } else {
+            outgoingCalls.remove(uuid);
+        }
+        hasOutgoingCall = !outgoingCalls.isEmpty();
+    }
+
+    private static long getForegroundStopGraceMs(Context context) {
+        ConstraintsMap foregroundSettings = getForegroundSettings(context.getApplicationContext());
+        if (foregroundSettings == null || foregroundSettings.isNull("stopGraceMs")) {
+            return 0;
+        }
+        return Math.max(0, foregroundSettings.getInt("stopGraceMs"));
+    }
+
+    /**
+     * The service meta-data is read from PackageManager the first time it is needed only.
+     */
+    @NonNull
+    synchronized ServiceMetadata getServiceMetadata() {
+        if (serviceMetadata == null) {
+            Bundle metaData = null;
+            try {
+                metaData = getMetaData();
+            } catch (PackageManager.NameNotFoundException e) {
+                Log.e(TAG, null, e);
             }
-        } catch (PackageManager.NameNotFoundException e) {
-            Log.e(TAG, null, e);
+            serviceMetadata = ServiceMetadata.from(metaData);
         }
-        return new ConstraintsMap();
+        return serviceMetadata;
     }
 
     @Override
@@ -174,6 +298,7 @@ public class VoiceConnectionService extends ConnectionService {
         Bundle extras = request.getExtras();
         assert extras != null;
         extras = extras.getBundle(TelecomManager.EXTRA_INCOMING_CALL_EXTRAS);
+        CallKeepBackgroundMessagingService.releaseWakeupLock(this);
         onConnectionFailed(request, Objects.requireNonNull(extras));
     }
 
@@ -188,8 +313,10 @@ public class VoiceConnectionService extends ConnectionService {
         String extrasNumber = extras.getString(EXTRA_CALL_NUMBER);
         String displayName = extras.getString(EXTRA_CALLER_NAME);
         Log.d(TAG, "onConnectionFailed: " + extrasUuid + ", number: " + extrasNumber + ", displayName:" + displayName);
-        HashMap<String, Object> connectionData = this.bundleToMap(extras);
-        sendCallRequestToActivity(ACTION_FAILED_CALL, connectionData);
+        if (extrasUuid != null) {
+            WakeLockManager.getInstance(this).release(extrasUuid);
+        }
+        sendCallRequestToActivity(ACTION_FAILED_CALL, CallInfo.fromBundle(extras));
         Log.d(TAG, "onConnectionFailed: calling");
     }
 
@@ -202,15 +329,15 @@ public class VoiceConnectionService extends ConnectionService {
         Bundle extras = request.getExtras();
         assert extras != null;
         extras = extras.getBundle(TelecomManager.EXTRA_INCOMING_CALL_EXTRAS);
-        Connection connection = makeOngoingCall(request, Objects.requireNonNull(extras));
-        connection.setRinging();
+        VoiceConnection connection = makeOngoingCall(request, Objects.requireNonNull(extras));
+        connection.ring();
+        // Telecom has the call now, the lock taken when the push woke the app is not needed
+        CallKeepBackgroundMessagingService.releaseWakeupLock(this);
         return connection;
     }
 
     @Override
     public Connection onCreateOutgoingConnection(PhoneAccountHandle phoneAccount, ConnectionRequest request) {
-        VoiceConnectionService.hasOutgoingCall = true;
-
         if (!isInitialized && !isReachable) {
             this.checkReachability(request);
         }
@@ -221,11 +348,15 @@ public class VoiceConnectionService extends ConnectionService {
     private Connection makeOutgoingCall(ConnectionRequest request) {
         fixMissingNumber(request.getAddress(), request.getExtras());
         fixMissingCallId(request.getExtras());
+        String uuid = request.getExtras().getString(EXTRA_CALL_UUID);
+        setOutgoingCall(uuid, true);
         if (!wakeAndCheckAvailability(request.getExtras(), false)) {
+            setOutgoingCall(uuid, false);
+            WakeLockManager.getInstance(this).release(uuid);
             return Connection.createFailedConnection(new DisconnectCause(DisconnectCause.LOCAL));
         } else {
             VoiceConnection connection = makeOngoingCall(request, request.getExtras());
-            connection.setDialing();
+            connection.dial();
             connection.initCall();
             return connection;
         }
@@ -237,11 +368,10 @@ public class VoiceConnectionService extends ConnectionService {
         String displayName = extras.getString(EXTRA_CALLER_NAME);
         Log.d(TAG, "makeOngoingCall: " + extrasUuid + ", number: " + extrasNumber + ", displayName:" + displayName);
         // TODO: Hold all other calls
-        HashMap<String, Object> connectionData = this.bundleToMap(extras);
-        VoiceConnection connection = new VoiceConnection(this, connectionData);
-        initConnection(extrasUuid, connection, extras, request.getAccountHandle());
-        startForegroundService();
-        sendCallRequestToActivity(ACTION_ONGOING_CALL, connectionData);
+        CallInfo callInfo = CallInfo.fromBundle(extras);
+        VoiceConnection connection = new VoiceConnection(this, callInfo);
+        initConnection(connection, extras, request.getAccountHandle());
+        callAdmission.admit(this, callInfo, connection.getState(), connection);
         Log.d(TAG, "makeOngoingCall: calling");
         return connection;
     }
@@ -275,131 +405,114 @@ public class VoiceConnectionService extends ConnectionService {
         return false;
     }
 
-    private void startForegroundService() {
+    private boolean startForegroundService(int calls) {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
             // Foreground services not required before SDK 28
-            return;
+            return false;
         }
         Log.d(TAG, "[VoiceConnectionService] startForegroundService");
         ConstraintsMap foregroundSettings = getForegroundSettings(getApplicationContext());
         if (foregroundSettings == null) {
             Log.w(TAG, "[VoiceConnectionService] Not creating foregroundService because not configured");
-            return;
-        }
-        String NOTIFICATION_CHANNEL_ID = foregroundSettings.getString("channelId");
-        String channelName = foregroundSettings.getString("channelName");
-        NotificationChannel chan = new NotificationChannel(NOTIFICATION_CHANNEL_ID, channelName, NotificationManager.IMPORTANCE_NONE);
-        chan.setLockscreenVisibility(Notification.VISIBILITY_PRIVATE);
-        NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-        assert manager != null;
-        manager.createNotificationChannel(chan);
-
-        NotificationCompat.Builder notificationBuilder = new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL_ID);
-        notificationBuilder.setOngoing(true)
-                .setContentTitle(foregroundSettings.getString("notificationTitle"))
-                .setPriority(NotificationManager.IMPORTANCE_MIN)
-                .setCategory(Notification.CATEGORY_SERVICE);
-
-        if (foregroundSettings.hasKey("notificationIcon")) {
-            Context context = this.getApplicationContext();
-            Resources res = context.getResources();
-            String smallIcon = foregroundSettings.getString("notificationIcon");
-            String mipmap = "mipmap/";
-            String drawable = "drawable/";
-            if (smallIcon.contains(mipmap)) {
-                notificationBuilder.setSmallIcon(
-                        res.getIdentifier(smallIcon.replace(mipmap, ""),
-                                "mipmap", context.getPackageName()));
-            } else if (smallIcon.contains(drawable)) {
-                notificationBuilder.setSmallIcon(
-                        res.getIdentifier(smallIcon.replace(drawable, ""),
-                                "drawable", context.getPackageName()));
-            }
+            return false;
         }
 
         Log.d(TAG, "[VoiceConnectionService] Starting foreground service");
 
-        Notification notification = notificationBuilder.build();
-        int notificationId = FOREGROUND_SERVICE_TYPE_MICROPHONE;
-        if (!foregroundSettings.isNull("notificationId")) {
-            notificationId = foregroundSettings.getInt("notificationId");
+        ForegroundNotificationManager notificationManager = getForegroundNotificationManager();
+        Notification notification = notificationManager.getNotification(foregroundSettings, calls);
+        startForeground(notificationManager.getNotificationId(), notification);
+        notificationManager.setShown(true);
+        return true;
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.O)
+    private synchronized ForegroundNotificationManager getForegroundNotificationManager() {
+        if (foregroundNotificationManager == null) {
+            foregroundNotificationManager = new ForegroundNotificationManager(this);
         }
-        startForeground(notificationId, notification);
+        return foregroundNotificationManager;
     }
 
-    @RequiresApi(api = Build.VERSION_CODES.N)
     private void stopForegroundService() {
-        Log.d(TAG, "[VoiceConnectionService] stopForegroundService");
-        ConstraintsMap foregroundSettings = getForegroundSettings(getApplicationContext());
-        if (foregroundSettings == null) {
-            Log.d(TAG, "[VoiceConnectionService] Discarding stop foreground service, no service configured");
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
             return;
         }
+        Log.d(TAG, "[VoiceConnectionService] stopForegroundService");
         stopForeground(Service.STOP_FOREGROUND_REMOVE);
+        if (foregroundNotificationManager != null) {
+            foregroundNotificationManager.setShown(false);
+        }
     }
 
     private void wakeUpApplication(Bundle extras) {
+        // Waking the app answers the pending reachability check, don't wake it twice
+        reachabilityProbe.cancel("wakeup");
         Intent headlessIntent = new Intent(
                 this.getApplicationContext(),
                 CallKeepBackgroundMessagingService.class
         );
         headlessIntent.putExtras(new Bundle(extras));
         Log.d(TAG, "wakeUpApplication: " +
-                extras.get(EXTRA_CALL_UUID) +
-                ", number : " + extras.get(EXTRA_CALL_NUMBER) +
-                ", displayName:" + extras.get(EXTRA_CALLER_NAME));
+                extras.getString(EXTRA_CALL_UUID) +
+                ", number : " + extras.getString(EXTRA_CALL_NUMBER) +
+                ", displayName:" + extras.getString(EXTRA_CALLER_NAME));
         ComponentName name = this.getApplicationContext().startService(headlessIntent);
         if (name != null) {
-            CallKeepBackgroundMessagingService.acquireWakeLockNow(this.getApplicationContext());
+            CallKeepBackgroundMessagingService.acquireWakeLockNow(this.getApplicationContext(), extras.getString(EXTRA_CALL_UUID));
         }
-        broadcastAction(ACTION_WAKEUP_CALL, bundleToMap(extras));
+        broadcastAction(ACTION_WAKEUP_CALL, CallInfo.fromBundle(extras).toMap());
     }
 
     private void checkReachability(ConnectionRequest request) {
         Log.d(TAG, "checkReachability");
-        checkReachability();
-        new Handler().postDelayed(
-                () -> {
-                    Log.d(TAG, "checkReachability timeout, force wakeup");
-                    wakeUpApplication(request.getExtras());
-                },
-                2000);
+        reachabilityProbe.start(getReachabilityBudgetMs(), () -> {
+            Log.d(TAG, "checkReachability timeout, force wakeup");
+            wakeUpApplication(request.getExtras());
+        });
+        sendReachabilityCheck();
     }
 
     private void checkReachability() {
+        reachabilityProbe.start(getReachabilityBudgetMs(), null);
+        sendReachabilityCheck();
+    }
+
+    private void sendReachabilityCheck() {
         sendCallRequestToActivity(ACTION_CHECK_REACHABILITY, null);
         broadcastAction(ACTION_CHECK_REACHABILITY, null);
     }
 
+    private long getReachabilityBudgetMs() {
+        ConstraintsMap settings = getSettings(getApplicationContext());
+        if (settings == null || settings.isNull("reachabilityBudgetMs")) {
+            return ReachabilityProbe.DEFAULT_BUDGET_MS;
+        }
+        return Math.max(0, settings.getInt("reachabilityBudgetMs"));
+    }
+
     private Boolean canMakeOutgoingCall() {
         return isAvailable;
     }
 
-    private void initConnection(String uuid, VoiceConnection connection, Bundle extras, PhoneAccountHandle accountHandle) {
+    private void initConnection(VoiceConnection connection, Bundle extras, PhoneAccountHandle accountHandle) {
         connection.setInitializing();
         connection.setExtras(extras);
 
         int capabilities = connection.getConnectionCapabilities() | Connection.CAPABILITY_MUTE;
-        ConstraintsMap settings = getSettings(getApplicationContext());
-        if (settings != null) {
-            if (!settings.isNull("supportsHolding") && settings.getBoolean("supportsHolding")) {
-                capabilities |= Connection.CAPABILITY_SUPPORT_HOLD;
-            }
-        } else {
-            ConstraintsMap metDataSettings = getMetadataSettings();
-            if (Boolean.TRUE.equals(metDataSettings.getBoolean(HOLD_SUPPORT_DATA_KEY))) {
-                capabilities |= Connection.CAPABILITY_SUPPORT_HOLD;
-            }
+        Boolean supportsHolding = CallAdmission.supportsHolding(getSettings(getApplicationContext()));
+        if (supportsHolding == null ? getServiceMetadata().isHoldSupported() : supportsHolding) {
+            capabilities |= Connection.CAPABILITY_SUPPORT_HOLD;
         }
         connection.setConnectionCapabilities(capabilities);
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             Context context = getApplicationContext();
             TelecomManager telecomManager = (TelecomManager) context.getSystemService(Context.TELECOM_SERVICE);
-            PhoneAccount phoneAccount = telecomManager.getPhoneAccount(accountHandle);
+            PhoneAccount phoneAccount = PhoneAccountCache.getInstance().get(telecomManager, accountHandle);
 
             //If the phone account is self managed, then this connection must also be self managed.
-            if ((phoneAccount.getCapabilities() & PhoneAccount.CAPABILITY_SELF_MANAGED) == PhoneAccount.CAPABILITY_SELF_MANAGED) {
+            if (phoneAccount != null && (phoneAccount.getCapabilities() & PhoneAccount.CAPABILITY_SELF_MANAGED) == PhoneAccount.CAPABILITY_SELF_MANAGED) {
                 Log.d(TAG, "[VoiceConnectionService] PhoneAccount is SELF_MANAGED, so connection will be too");
                 connection.setConnectionProperties(Connection.PROPERTY_SELF_MANAGED);
             } else {
@@ -407,11 +520,9 @@ public class VoiceConnectionService extends ConnectionService {
             }
         }
 
-        // Get other connections for conferencing
-        List<Connection> conferenceConnections = new ArrayList<>(currentConnections.values());
-        connection.setConferenceableConnections(conferenceConnections);
-
-        currentConnections.put(uuid, connection);
+        if (conferenceManager != null) {
+            conferenceManager.add(connection);
+        }
 
         // ‍️Weirdly on some Samsung phones (A50, S9...) using `setInitialized` will not display the native UI ...
         // when making a call from the native Phone application. The call will still be displayed correctly without it.
@@ -423,48 +534,27 @@ public class VoiceConnectionService extends ConnectionService {
     @Override
     public void onConference(Connection connection1, Connection connection2) {
         super.onConference(connection1, connection2);
-        VoiceConnection voiceConnection1 = (VoiceConnection) connection1;
-        VoiceConnection voiceConnection2 = (VoiceConnection) connection2;
-
-        VoiceConference voiceConference = new VoiceConference(phoneAccountHandle);
-        voiceConference.addConnection(voiceConnection1);
-        voiceConference.addConnection(voiceConnection2);
-
-        connection1.onUnhold();
-        connection2.onUnhold();
-
-        this.addConference(voiceConference);
+        if (conferenceManager != null) {
+            conferenceManager.merge(connection1, connection2, phoneAccountHandle);
+        }
     }
 
     /*
      * Send call request to the RNCallKeepModule
      */
     private void broadcastAction(final String action, @Nullable final HashMap<?, ?> attributeMap) {
-        try {
-            Bundle appMetaData = getMetaData();
-            if (appMetaData == null) return;
-            String receiverName = appMetaData.getString(BROADCAST_RECEIVER_META_DATA_KEY);
-            if (receiverName == null) return;
-            Class<?> clazz = Class.forName(receiverName);
-            Intent intent = new Intent(getApplicationContext(), clazz);
-            intent.setAction(getPackageName() + "." + action);
-            if (attributeMap != null) {
-                intent.putExtra(EXTRA_CALL_ATTRIB, attributeMap);
-            }
-            sendBroadcast(intent);
-        } catch (ClassNotFoundException | PackageManager.NameNotFoundException e) {
-            Log.e(TAG, null, e);
+        Class<?> receiver = getServiceMetadata().getBroadcastReceiver();
+        if (receiver == null) return;
+        Intent intent = new Intent(getApplicationContext(), receiver);
+        intent.setAction(getPackageName() + "." + action);
+        if (attributeMap != null) {
+            intent.putExtra(EXTRA_CALL_ATTRIB, attributeMap);
         }
+        sendBroadcast(intent);
     }
 
-    private void sendCallRequestToActivity(final String action, @Nullable final HashMap attributeMap) {
-        new Handler().post(() -> {
-            Intent intent = new Intent(action);
-            if (attributeMap != null) {
-                intent.putExtra(EXTRA_CALL_ATTRIB, attributeMap);
-            }
-            LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
-        });
+    private void sendCallRequestToActivity(final String action, @Nullable final CallInfo callInfo) {
+        CallEventBus.publish(this, CallEvent.of(action, callInfo));
     }
 
     @Nullable
@@ -473,36 +563,11 @@ public class VoiceConnectionService extends ConnectionService {
         return serviceInfo.metaData;
     }
 
-    private HashMap<String, Object> bundleToMap(Bundle extras) {
-        HashMap<String, Object> extrasMap = new HashMap<>();
-        Set<String> keySet = extras.keySet();
-
-        for (String key : keySet) {
-            if (extras.get(key) != null) {
-                Object value = extras.get(key);
-                if (value != null) {
-                    extrasMap.put(key, value);
-                }
-            }
-        }
-        return extrasMap;
-    }
-
     /**
-     * https://stackoverflow.com/questions/5446565/android-how-do-i-check-if-activity-is-running
-     *
-     * @param context Context
-     * @return boolean
+     * @return true when the app has an activity, see {@link AppForegroundTracker}
      */
     public static boolean isRunning(Context context) {
-        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
-        List<RunningTaskInfo> tasks = activityManager.getRunningTasks(Integer.MAX_VALUE);
-
-        for (RunningTaskInfo task : tasks) {
-            if (context.getPackageName().equalsIgnoreCase(task.baseActivity.getPackageName()))
-                return true;
-        }
-
-        return false;
+        AppForegroundTracker.install(context);
+        return AppForegroundTracker.isRunning();
     }
 }
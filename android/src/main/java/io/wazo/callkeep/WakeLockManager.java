@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package io.wazo.callkeep;
+
+import android.content.Context;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Partial wake locks owned by calls, keyed by call UUID.
+ *
+ * Every lock is acquired with a timeout so the CPU is never kept awake forever; the owning call
+ * releases it as soon as it ends. A lock that reached its timeout before being released is
+ * counted as expired: that is expected for a call lasting longer than the timeout, and only hints
+ * at a call that never ended when the count grows without such calls.
+ */
+final class WakeLockManager {
+    private static final String TAG = "FLT:WakeLockManager";
+    static final long DEFAULT_TIMEOUT_MS = 60_000;
+
+    private static WakeLockManager instance;
+
+    private final PowerManager powerManager;
+    private final HashMap<String, Holder> held = new HashMap<>();
+    private long acquisitions = 0;
+    private long releases = 0;
+    private long expired = 0;
+    private long totalHeldMs = 0;
+
+    private static final class Holder {
+        final PowerManager.WakeLock lock;
+        long acquiredAt;
+        long expiresAt;
+
+        Holder(PowerManager.WakeLock lock) {
+            this.lock = lock;
+        }
+    }
+
+    private WakeLockManager(Context context) {
+        powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+    }
+
+    static synchronized WakeLockManager getInstance(@NonNull Context context) {
+        if (instance == null) {
+            instance = new WakeLockManager(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Acquires the lock owned by the key, or extends its timeout if it is already held.
+     */
+    synchronized void acquire(@NonNull String key, long timeoutMs) {
+        sweepExpired();
+        long now = SystemClock.elapsedRealtime();
+        Holder holder = held.get(key);
+        if (holder == null) {
+            PowerManager.WakeLock lock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "CallKeep:" + key);
+            lock.setReferenceCounted(false);
+            holder = new Holder(lock);
+            holder.acquiredAt = now;
+            held.put(key, holder);
+            acquisitions++;
+        }
+        holder.expiresAt = now + timeoutMs;
+        holder.lock.acquire(timeoutMs);
+    }
+
+    synchronized void release(@NonNull String key) {
+        Holder holder = held.remove(key);
+        if (holder == null) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (holder.lock.isHeld()) {
+            holder.lock.release();
+            releases++;
+            totalHeldMs += now - holder.acquiredAt;
+        } else {
+            onExpired(key, holder);
+        }
+        sweepExpired();
+    }
+
+    synchronized void releaseAll() {
+        for (String key : held.keySet().toArray(new String[0])) {
+            release(key);
+        }
+    }
+
+    synchronized Map<String, Object> getStats() {
+        sweepExpired();
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("held", held.size());
+        stats.put("acquisitions", acquisitions);
+        stats.put("releases", releases);
+        stats.put("expired", expired);
+        stats.put("totalHeldMs", totalHeldMs);
+        return stats;
+    }
+
+    private void sweepExpired() {
+        Iterator<Map.Entry<String, Holder>> it = held.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Holder> entry = it.next();
+            if (!entry.getValue().lock.isHeld()) {
+                it.remove();
+                onExpired(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void onExpired(String key, Holder holder) {
+        expired++;
+        totalHeldMs += holder.expiresAt - holder.acquiredAt;
+        Log.d(TAG, "Wake lock of " + key + " timed out before being released");
+    }
+}
@@ -0,0 +1,258 @@
+package io.wazo.callkeep.utils;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact tagged binary encoding for the value types carried by ConstraintsMap and the platform
+ * channel: null, Boolean, Integer, Long, Double, String, byte[], Map and List.
+ *
+ * Layout is big-endian: a one byte tag per value, lengths as unsigned varints, strings as UTF-8.
+ * Decoding yields the same Java types StandardMessageCodec produces (HashMap, ArrayList, Integer...).
+ */
+public class BinaryMapCodec {
+    private static final byte NULL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte INT = 3;
+    private static final byte LONG = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte STRING = 6;
+    private static final byte BYTES = 7;
+    private static final byte MAP = 8;
+    private static final byte LIST = 9;
+
+    public static class FormatException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public FormatException(String message) {
+            super(message);
+        }
+    }
+
+    public static byte[] encode(Map<String, ?> map) {
+        Output out = new Output(256);
+        writeMap(out, map);
+        return out.toByteArray();
+    }
+
+    public static HashMap<String, Object> decode(byte[] bytes) throws FormatException {
+        return decode(ByteBuffer.wrap(bytes));
+    }
+
+    public static HashMap<String, Object> decode(ByteBuffer buffer) throws FormatException {
+        try {
+            byte tag = buffer.get();
+            if (tag != MAP) {
+                throw new FormatException("Expected a map, found tag " + tag);
+            }
+            return readMap(buffer);
+        } catch (BufferUnderflowException | IllegalArgumentException | ClassCastException e) {
+            throw new FormatException("Truncated or corrupted payload: " + e);
+        }
+    }
+
+    private static void writeMap(Output out, Map<String, ?> map) {
+        out.write(MAP);
+        out.writeVarint(map.size());
+        for (Map.Entry<String, ?> entry : map.entrySet()) {
+            out.writeString(entry.getKey());
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeValue(Output out, Object value) {
+        if (value == null) {
+            out.write(NULL);
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            out.write(INT);
+            out.writeInt(((Number) value).intValue());
+        } else if (value instanceof Long) {
+            out.write(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            out.write(DOUBLE);
+            out.writeLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+        } else if (value instanceof String) {
+            out.write(STRING);
+            out.writeString((String) value);
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            out.write(BYTES);
+            out.writeVarint(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        } else if (value instanceof Map) {
+            writeMap(out, (Map<String, ?>) value);
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            out.write(LIST);
+            out.writeVarint(list.size());
+            for (Object item : list) {
+                writeValue(out, item);
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported value type " + value.getClass().getName());
+        }
+    }
+
+    private static HashMap<String, Object> readMap(ByteBuffer in) throws FormatException {
+        int size = readCount(in);
+        HashMap<String, Object> map = new HashMap<>(Math.max(4, size * 4 / 3 + 1));
+        for (int i = 0; i < size; i++) {
+            String key = readString(in);
+            map.put(key, readValue(in));
+        }
+        return map;
+    }
+
+    private static Object readValue(ByteBuffer in) throws FormatException {
+        byte tag = in.get();
+        switch (tag) {
+            case NULL:
+                return null;
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case INT:
+                return in.getInt();
+            case LONG:
+                return in.getLong();
+            case DOUBLE:
+                return Double.longBitsToDouble(in.getLong());
+            case STRING:
+                return readString(in);
+            case BYTES: {
+                byte[] bytes = new byte[readCount(in)];
+                in.get(bytes);
+                return bytes;
+            }
+            case MAP:
+                return readMap(in);
+            case LIST: {
+                int size = readCount(in);
+                ArrayList<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in));
+                }
+                return list;
+            }
+            default:
+                throw new FormatException("Unknown tag " + tag);
+        }
+    }
+
+    private static String readString(ByteBuffer in) throws FormatException {
+        int length = readCount(in);
+        String value;
+        if (in.hasArray()) {
+            value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    /**
+     * Reads a length or an element count. Every element takes at least one byte, so anything larger
+     * than the rest of the payload is corrupt and is rejected before it sizes an allocation.
+     */
+    private static int readCount(ByteBuffer in) throws FormatException {
+        int count = readVarint(in);
+        if (count > in.remaining()) {
+            throw new FormatException("Length " + count + " exceeds payload");
+        }
+        return count;
+    }
+
+    private static int readVarint(ByteBuffer in) throws FormatException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    throw new FormatException("Negative length");
+                }
+                return value;
+            }
+        }
+        throw new FormatException("Malformed varint");
+    }
+
+    /**
+     * Growable byte buffer; avoids the synchronization of ByteArrayOutputStream.
+     */
+    static final class Output {
+        private byte[] buffer;
+        private int size;
+
+        Output(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > buffer.length) {
+                byte[] grown = new byte[Math.max(buffer.length * 2, size + extra)];
+                System.arraycopy(buffer, 0, grown, 0, size);
+                buffer = grown;
+            }
+        }
+
+        void write(byte b) {
+            ensure(1);
+            buffer[size++] = b;
+        }
+
+        void write(byte[] bytes, int offset, int length) {
+            ensure(length);
+            System.arraycopy(bytes, offset, buffer, size, length);
+            size += length;
+        }
+
+        void writeInt(int v) {
+            ensure(4);
+            buffer[size++] = (byte) (v >>> 24);
+            buffer[size++] = (byte) (v >>> 16);
+            buffer[size++] = (byte) (v >>> 8);
+            buffer[size++] = (byte) v;
+        }
+
+        void writeLong(long v) {
+            writeInt((int) (v >>> 32));
+            writeInt((int) v);
+        }
+
+        void writeVarint(int v) {
+            ensure(5);
+            while ((v & ~0x7f) != 0) {
+                buffer[size++] = (byte) ((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            buffer[size++] = (byte) v;
+        }
+
+        void writeString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        byte[] toByteArray() {
+            byte[] result = new byte[size];
+            System.arraycopy(buffer, 0, result, 0, size);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package io.wazo.callkeep.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encoding of the call additionalData carried by the call extras (EXTRA_CALL_DATA) as a byte[],
+ * instead of a Serializable HashMap that is written entry by entry on every Binder crossing.
+ *
+ * String to string maps, by far the common case (SIP headers, push payload fields), take a fast
+ * path: a format byte, the entry count, then each key and value as a varint length and its UTF-8
+ * bytes, copied into an exactly sized array. Any other map is written with {@link BinaryMapCodec}.
+ * Payloads are capped at {@link #MAX_ENCODED_BYTES}; the extras share the Binder transaction
+ * buffer with everything else the process sends to Telecom.
+ */
+public class CallDataCodec {
+    public static final int MAX_ENCODED_BYTES = 32 * 1024;
+
+    // BinaryMapCodec payloads start with its MAP tag (8)
+    private static final byte STRING_MAP = 1;
+
+    /**
+     * @throws IllegalArgumentException when the map has a null key, a value BinaryMapCodec can't
+     * write, or encodes to more than {@link #MAX_ENCODED_BYTES}
+     */
+    @SuppressWarnings("unchecked")
+    public static byte[] encode(Map<String, ?> data) {
+        boolean strings = true;
+        for (Map.Entry<String, ?> entry : data.entrySet()) {
+            if (entry.getKey() == null) {
+                throw new IllegalArgumentException("additionalData has a null key");
+            }
+            if (!(entry.getValue() instanceof String)) {
+                strings = false;
+            }
+        }
+        byte[] bytes = strings
+                ? encodeStrings((Map<String, String>) data)
+                : BinaryMapCodec.encode(data);
+        if (bytes.length > MAX_ENCODED_BYTES) {
+            throw new IllegalArgumentException("additionalData encodes to " + bytes.length
+                    + " bytes, more than " + MAX_ENCODED_BYTES);
+        }
+        return bytes;
+    }
+
+    public static HashMap<String, Object> decode(byte[] bytes) throws BinaryMapCodec.FormatException {
+        if (bytes.length == 0) {
+            throw new BinaryMapCodec.FormatException("Empty payload");
+        }
+        if (bytes[0] != STRING_MAP) {
+            return BinaryMapCodec.decode(bytes);
+        }
+        Input in = new Input(bytes, 1);
+        int size = in.readVarint();
+        // Every entry takes at least two bytes, the lengths of its key and value
+        if (size > (bytes.length - in.position) / 2) {
+            throw new BinaryMapCodec.FormatException("Entry count " + size + " exceeds payload");
+        }
+        HashMap<String, Object> map = new HashMap<>(Math.max(4, size * 4 / 3 + 1));
+        for (int i = 0; i < size; i++) {
+            String key = in.readString();
+            map.put(key, in.readString());
+        }
+        if (in.position != bytes.length) {
+            throw new BinaryMapCodec.FormatException((bytes.length - in.position) + " trailing bytes");
+        }
+        return map;
+    }
+
+    private static byte[] encodeStrings(Map<String, String> data) {
+        // Keys and values are encoded once to size the output exactly, then copied
+        byte[][] strings = new byte[data.size() * 2][];
+        int length = 1 + varintLength(data.size());
+        int slot = 0;
+        for (Map.Entry<String, String> entry : data.entrySet()) {
+            byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            byte[] value = entry.getValue().getBytes(StandardCharsets.UTF_8);
+            strings[slot++] = key;
+            strings[slot++] = value;
+            length += varintLength(key.length) + key.length + varintLength(value.length) + value.length;
+        }
+
+        byte[] out = new byte[length];
+        out[0] = STRING_MAP;
+        int position = writeVarint(out, 1, data.size());
+        for (byte[] string : strings) {
+            position = writeVarint(out, position, string.length);
+            System.arraycopy(string, 0, out, position, string.length);
+            position += string.length;
+        }
+        return out;
+    }
+
+    private static int varintLength(int v) {
+        int length = 1;
+        while ((v & ~0x7f) != 0) {
+            length++;
+            v >>>= 7;
+        }
+        return length;
+    }
+
+    private static int writeVarint(byte[] out, int position, int v) {
+        while ((v & ~0x7f) != 0) {
+            out[position++] = (byte) ((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out[position++] = (byte) v;
+        return position;
+    }
+
+    private static final class Input {
+        private final byte[] bytes;
+        private int position;
+
+        Input(byte[] bytes, int position) {
+            this.bytes = bytes;
+            this.position = position;
+        }
+
+        int readVarint() throws BinaryMapCodec.FormatException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                if (position >= bytes.length) {
+                    throw new BinaryMapCodec.FormatException("Truncated varint");
+                }
+                byte b = bytes[position++];
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    if (value < 0) {
+                        throw new BinaryMapCodec.FormatException("Negative length");
+                    }
+                    return value;
+                }
+            }
+            throw new BinaryMapCodec.FormatException("Malformed varint");
+        }
+
+        String readString() throws BinaryMapCodec.FormatException {
+            int length = readVarint();
+            if (length > bytes.length - position) {
+                throw new BinaryMapCodec.FormatException("String length " + length + " exceeds payload");
+            }
+            String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
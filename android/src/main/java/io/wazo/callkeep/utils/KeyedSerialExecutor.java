@@ -0,0 +1,143 @@
+package io.wazo.callkeep.utils;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks on a shared executor, one at a time per key and in submission order.
+ *
+ * Tasks with different keys run in parallel; a key only occupies a pool thread while it has
+ * queued work, and its queue is dropped once drained.
+ *
+ * A barrier task is ordered against every key: it starts once all the tasks submitted before it
+ * have completed, and tasks submitted after it wait until it has completed.
+ */
+public class KeyedSerialExecutor {
+    private static final String TAG = "FLT:KeyedSerialExecutor";
+
+    private final Executor executor;
+    private final HashMap<String, ArrayDeque<Runnable>> queues = new HashMap<>();
+    // Tasks submitted while a barrier is waiting or running, in submission order
+    private final ArrayDeque<Pending> backlog = new ArrayDeque<>();
+    private boolean barrierActive = false;
+    // The active barrier, while it waits for the keyed queues to drain
+    private Runnable waitingBarrier;
+
+    public KeyedSerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public void execute(final String key, final Runnable task) {
+        Runnable start;
+        synchronized (queues) {
+            if (barrierActive) {
+                backlog.add(new Pending(key, task));
+                return;
+            }
+            start = enqueue(key, task);
+        }
+        if (start != null) {
+            executor.execute(start);
+        }
+    }
+
+    public void executeBarrier(final Runnable task) {
+        Runnable start;
+        synchronized (queues) {
+            if (barrierActive) {
+                backlog.add(new Pending(null, task));
+                return;
+            }
+            start = activateBarrier(task);
+        }
+        if (start != null) {
+            executor.execute(start);
+        }
+    }
+
+    /** Returns the drain loop to start when the key had no queue yet. */
+    private Runnable enqueue(final String key, final Runnable task) {
+        ArrayDeque<Runnable> queue = queues.get(key);
+        if (queue != null) {
+            queue.add(task);
+            return null;
+        }
+        queues.put(key, new ArrayDeque<Runnable>());
+        return () -> drain(key, task);
+    }
+
+    /** Returns the barrier to start right away, or null when it waits for the keyed queues. */
+    private Runnable activateBarrier(final Runnable task) {
+        barrierActive = true;
+        if (!queues.isEmpty()) {
+            waitingBarrier = task;
+            return null;
+        }
+        return () -> runBarrier(task);
+    }
+
+    private void drain(String key, Runnable first) {
+        Runnable next = first;
+        while (next != null) {
+            run(key, next);
+            Runnable barrier = null;
+            synchronized (queues) {
+                ArrayDeque<Runnable> queue = queues.get(key);
+                next = queue.poll();
+                if (next == null) {
+                    queues.remove(key);
+                    if (queues.isEmpty() && waitingBarrier != null) {
+                        barrier = waitingBarrier;
+                        waitingBarrier = null;
+                    }
+                }
+            }
+            if (barrier != null) {
+                runBarrier(barrier);
+            }
+        }
+    }
+
+    private void runBarrier(Runnable barrier) {
+        run("barrier", barrier);
+        List<Runnable> starts = new ArrayList<>();
+        synchronized (queues) {
+            barrierActive = false;
+            Pending pending;
+            while (!barrierActive && (pending = backlog.poll()) != null) {
+                Runnable start = pending.key == null
+                        ? activateBarrier(pending.task)
+                        : enqueue(pending.key, pending.task);
+                if (start != null) {
+                    starts.add(start);
+                }
+            }
+        }
+        for (Runnable start : starts) {
+            executor.execute(start);
+        }
+    }
+
+    private static void run(String key, Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Task for " + key + " failed", e);
+        }
+    }
+
+    private static final class Pending {
+        final String key;
+        final Runnable task;
+
+        Pending(String key, Runnable task) {
+            this.key = key;
+            this.task = task;
+        }
+    }
+}
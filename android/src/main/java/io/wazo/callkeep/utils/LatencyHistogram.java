@@ -0,0 +1,89 @@
+package io.wazo.callkeep.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fixed bucket histogram of durations in milliseconds.
+ *
+ * Percentiles are reported as the upper bound of the bucket they fall in (or the maximum for the
+ * overflow bucket), which is precise enough to tell 100ms from 1s and costs no allocation per
+ * sample.
+ */
+public class LatencyHistogram {
+    private static final long[] BOUNDS_MS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000};
+
+    // The last bucket counts everything above the last bound
+    private final long[] counts = new long[BOUNDS_MS.length + 1];
+    private long count;
+    private long sumMs;
+    private long minMs = Long.MAX_VALUE;
+    private long maxMs;
+
+    public synchronized void record(long durationMs) {
+        if (durationMs < 0) {
+            return;
+        }
+        int bucket = 0;
+        while (bucket < BOUNDS_MS.length && durationMs > BOUNDS_MS[bucket]) {
+            bucket++;
+        }
+        counts[bucket]++;
+        count++;
+        sumMs += durationMs;
+        minMs = Math.min(minMs, durationMs);
+        maxMs = Math.max(maxMs, durationMs);
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sumMs = 0;
+        minMs = Long.MAX_VALUE;
+        maxMs = 0;
+    }
+
+    /**
+     * @return count, min, max, mean and p50/p90/p99 in milliseconds, plus the bucket bounds and
+     * counts
+     */
+    public synchronized Map<String, Object> toMap() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("count", count);
+        map.put("minMs", count == 0 ? 0 : minMs);
+        map.put("maxMs", maxMs);
+        map.put("meanMs", count == 0 ? 0 : sumMs / count);
+        map.put("p50Ms", percentile(0.50));
+        map.put("p90Ms", percentile(0.90));
+        map.put("p99Ms", percentile(0.99));
+        List<Long> bounds = new ArrayList<>(BOUNDS_MS.length);
+        for (long bound : BOUNDS_MS) {
+            bounds.add(bound);
+        }
+        List<Long> bucketCounts = new ArrayList<>(counts.length);
+        for (long bucketCount : counts) {
+            bucketCounts.add(bucketCount);
+        }
+        map.put("boundsMs", bounds);
+        map.put("counts", bucketCounts);
+        return map;
+    }
+
+    private long percentile(double quantile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * count);
+        long seen = 0;
+        for (int bucket = 0; bucket < BOUNDS_MS.length; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank) {
+                return Math.min(BOUNDS_MS[bucket], maxMs);
+            }
+        }
+        return maxMs;
+    }
+}
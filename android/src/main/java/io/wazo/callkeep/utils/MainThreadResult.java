@@ -0,0 +1,55 @@
+package io.wazo.callkeep.utils;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.flutter.plugin.common.MethodChannel;
+
+/**
+ * Forwards replies to the wrapped Result on the platform main thread, so handlers running on
+ * worker threads can complete a method call directly.
+ *
+ * Only the first reply is forwarded, so a handler that fails after answering can't trip the
+ * engine's "reply already submitted" check.
+ */
+public class MainThreadResult implements MethodChannel.Result {
+    private static final String TAG = "FLT:MainThreadResult";
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final MethodChannel.Result result;
+    private final AtomicBoolean replied = new AtomicBoolean();
+
+    public MainThreadResult(MethodChannel.Result result) {
+        this.result = result;
+    }
+
+    @Override
+    public void success(final Object value) {
+        post(() -> result.success(value));
+    }
+
+    @Override
+    public void error(final String errorCode, final String errorMessage, final Object errorDetails) {
+        post(() -> result.error(errorCode, errorMessage, errorDetails));
+    }
+
+    @Override
+    public void notImplemented() {
+        post(result::notImplemented);
+    }
+
+    private void post(Runnable reply) {
+        if (!replied.compareAndSet(false, true)) {
+            Log.w(TAG, "Dropping a second reply to the same method call");
+            return;
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            reply.run();
+        } else {
+            mainHandler.post(reply);
+        }
+    }
+}
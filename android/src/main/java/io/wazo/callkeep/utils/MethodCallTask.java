@@ -0,0 +1,41 @@
+package io.wazo.callkeep.utils;
+
+import android.util.Log;
+
+import io.flutter.plugin.common.MethodChannel;
+
+/**
+ * Runs a method call handler and makes sure the call is always answered: a handler that doesn't
+ * know the method answers notImplemented, and one that throws answers with an error whose code is
+ * the method name, so the Dart future completes instead of hanging.
+ */
+public class MethodCallTask implements Runnable {
+    private static final String TAG = "FLT:MethodCallTask";
+
+    public interface Dispatch {
+        /** Returns false when the method is not handled. */
+        boolean dispatch();
+    }
+
+    private final String method;
+    private final Dispatch dispatch;
+    private final MethodChannel.Result result;
+
+    public MethodCallTask(String method, Dispatch dispatch, MethodChannel.Result result) {
+        this.method = method;
+        this.dispatch = dispatch;
+        this.result = result;
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (!dispatch.dispatch()) {
+                result.notImplemented();
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, method + " failed", e);
+            result.error(method, e.getMessage(), null);
+        }
+    }
+}
@@ -34,9 +34,22 @@ class CallKeepPerformRejectCallAction extends EventType {
 class CallKeepDidChangeAudioAction extends EventType {
   CallKeepDidChangeAudioAction.fromMap(Map<dynamic, dynamic> arguments)
       : callUUID = arguments['callUUID'],
-        audioRoute = arguments['audioRoute'];
+        audioRoute = arguments['audioRoute'],
+        muted = arguments['muted'],
+        muteChanged = arguments['muteChanged'] ?? false,
+        supportedRouteMask = arguments['supportedRouteMask'];
   final String? callUUID;
+
+  /// One of the [AudioRoute] values.
   final int? audioRoute;
+  final bool? muted;
+
+  /// Whether [muted] differs from the previous event, which then also comes
+  /// as a [CallKeepDidPerformSetMutedCallAction].
+  final bool muteChanged;
+
+  /// [AudioRoute] bits the call can switch to.
+  final int? supportedRouteMask;
 }
 
 class CallKeepDidReceiveFailedCallAction extends EventType {
@@ -91,6 +104,15 @@ class CallKeepDidPerformDTMFAction extends EventType {
   final String? digits;
 }
 
+/// An Android call joined a conference, or left it when [conferenceId] is null.
+class CallKeepDidChangeConferenceAction extends EventType {
+  CallKeepDidChangeConferenceAction.fromMap(Map<dynamic, dynamic> arguments)
+      : callUUID = arguments['callUUID'],
+        conferenceId = arguments['conferenceId'];
+  final String? callUUID;
+  final String? conferenceId;
+}
+
 class CallKeepProviderReset extends EventType {
   CallKeepProviderReset();
 }
@@ -99,8 +121,13 @@ class CallKeepCheckReachability extends EventType {
   CallKeepCheckReachability();
 }
 
+/// Sent once the events published before setup() were replayed, each as its
+/// own event.
 class CallKeepDidLoadWithEvents extends EventType {
-  CallKeepDidLoadWithEvents();
+  CallKeepDidLoadWithEvents([this.replayed = 0]);
+
+  /// Number of events replayed just before this one.
+  final int replayed;
 }
 
 class CallKeepPushKitToken extends EventType {
@@ -1,11 +1,14 @@
 import 'dart:async';
 import 'dart:io';
+import 'dart:ui';
 
 import 'package:flutter/services.dart';
 
 import 'package:logger/logger.dart';
 
 import 'actions.dart';
+import 'background.dart';
+import 'call.dart';
 import 'event.dart';
 
 bool get isIOS => Platform.isIOS;
@@ -51,6 +54,31 @@ class FlutterCallkeep extends EventManager {
         .invokeMethod<void>('registerPhoneAccount', <String, dynamic>{});
   }
 
+  /// Registers [handler] to run in a headless isolate when an Android call
+  /// event arrives while the app has no activity. [handler] must be a
+  /// top-level or static function annotated with
+  /// `@pragma('vm:entry-point')`; it usually calls [setup] and subscribes to
+  /// the events it needs.
+  Future<bool> registerBackgroundHandler(
+      FutureOr<void> Function() handler) async {
+    if (isIOS) {
+      return false;
+    }
+    final dispatcherHandle =
+        PluginUtilities.getCallbackHandle(callkeepBackgroundDispatcher);
+    final callbackHandle = PluginUtilities.getCallbackHandle(handler);
+    if (dispatcherHandle == null || callbackHandle == null) {
+      throw ArgumentError(
+          'The background handler must be a top-level or static function');
+    }
+    final resp = await _channel
+        .invokeMethod<bool>('registerBackgroundHandler', <String, dynamic>{
+      'dispatcherHandle': dispatcherHandle.toRawHandle(),
+      'callbackHandle': callbackHandle.toRawHandle(),
+    });
+    return resp ?? false;
+  }
+
   Future<void> registerAndroidEvents() async {
     if (isIOS) {
       return;
@@ -216,6 +244,27 @@ class FlutterCallkeep extends EventManager {
     return [];
   }
 
+  /// UUIDs of the calls in [state], one of the [CallState] values. Android
+  /// only; answered from an index, without walking every call.
+  Future<List<String>> callsInState(int state) async {
+    if (isIOS) {
+      throw Exception('CallKeep.callsInState was called from unsupported OS');
+    }
+    final resp = await _channel.invokeListMethod<String>(
+        'callsInState', <String, dynamic>{'state': state});
+    return resp ?? <String>[];
+  }
+
+  /// UUIDs of the calls whose remote handle is [handle]. Android only.
+  Future<List<String>> callsWithHandle(String handle) async {
+    if (isIOS) {
+      throw Exception('CallKeep.callsWithHandle was called from unsupported OS');
+    }
+    final resp = await _channel.invokeListMethod<String>(
+        'callsWithHandle', <String, dynamic>{'handle': handle});
+    return resp ?? <String>[];
+  }
+
   Future<void> endCall(String uuid) async => await _channel
       .invokeMethod<void>('endCall', <String, dynamic>{'uuid': uuid});
 
@@ -234,6 +283,70 @@ class FlutterCallkeep extends EventManager {
     return false;
   }
 
+  /// Drops the cached PhoneAccount state on Android and queries Telecom again,
+  /// e.g. after the user came back from the phone account settings.
+  Future<bool> refreshPhoneAccount() async {
+    if (isIOS) {
+      return true;
+    }
+    var resp = await _channel
+        .invokeMethod<bool>('refreshPhoneAccount', <String, dynamic>{});
+    return resp ?? false;
+  }
+
+  /// Hit/miss counters of the Android PhoneAccount cache.
+  Future<Map<String, dynamic>> phoneAccountCacheStats() async {
+    if (isIOS) {
+      return <String, dynamic>{};
+    }
+    var resp = await _channel.invokeMapMethod<String, dynamic>(
+        'phoneAccountCacheStats', <String, dynamic>{});
+    return resp ?? <String, dynamic>{};
+  }
+
+  /// Held, released and expired (timed out before release) counts of the
+  /// Android wake locks.
+  Future<Map<String, dynamic>> wakeLockStats() async {
+    if (isIOS) {
+      return <String, dynamic>{};
+    }
+    var resp = await _channel.invokeMapMethod<String, dynamic>(
+        'wakeLockStats', <String, dynamic>{});
+    return resp ?? <String, dynamic>{};
+  }
+
+  /// Start/stop counters of the Android foreground service.
+  Future<Map<String, dynamic>> foregroundServiceStats() async {
+    if (isIOS) {
+      return <String, dynamic>{};
+    }
+    var resp = await _channel.invokeMapMethod<String, dynamic>(
+        'foregroundServiceStats', <String, dynamic>{});
+    return resp ?? <String, dynamic>{};
+  }
+
+  /// Android call setup latencies: `ringToAnswer`, `dialToActive` and
+  /// `answerToAudio`, each with count, min/max/mean, p50/p90/p99 and the
+  /// histogram buckets, all in milliseconds. [reset] clears them afterwards.
+  Future<Map<String, dynamic>> callTimingStats({bool reset = false}) async {
+    if (isIOS) {
+      return <String, dynamic>{};
+    }
+    var resp = await _channel.invokeMapMethod<String, dynamic>(
+        'callTimingStats', <String, dynamic>{'reset': reset});
+    return resp ?? <String, dynamic>{};
+  }
+
+  /// The active Android conference, null when the calls are not merged.
+  Future<ConferenceData?> getConference() async {
+    if (isIOS) {
+      return null;
+    }
+    var resp = await _channel.invokeMapMethod<String, dynamic>(
+        'getConference', <String, dynamic>{});
+    return resp == null ? null : ConferenceData.fromMap(resp);
+  }
+
   Future<bool> hasOutgoingCall() async {
     if (isIOS) {
       return true;
@@ -246,11 +359,51 @@ class FlutterCallkeep extends EventManager {
     return false;
   }
 
+  /// Applies several call commands in a single platform channel round trip.
+  /// Android only; results are in the same order as [commands].
+  Future<List<CallCommandResult>> batchCommands(
+      List<CallCommand> commands) async {
+    if (isIOS) {
+      throw Exception('CallKeep.batchCommands was called from unsupported OS');
+    }
+    final resp = await _channel.invokeListMethod<Map<dynamic, dynamic>>(
+        'batchCommands', <String, dynamic>{
+      'commands': commands.map((command) => command.toMap()).toList(),
+    });
+    return (resp ?? <Map<dynamic, dynamic>>[])
+        .map((result) => CallCommandResult.fromMap(result))
+        .toList();
+  }
+
   Future<void> setMutedCall(
           {required String uuid, required bool shouldMute}) async =>
       await _channel.invokeMethod<void>(
           'setMutedCall', <String, dynamic>{'uuid': uuid, 'muted': shouldMute});
 
+  /// Asks Android to switch the call to [route], one of the [AudioRoute]
+  /// values. The switch is reported by [CallKeepDidChangeAudioAction]; false
+  /// when the call is unknown or the route is not supported.
+  Future<bool> setAudioRoute(
+      {required String uuid, required int route}) async {
+    if (isIOS) {
+      return false;
+    }
+    var resp = await _channel.invokeMethod<bool>('setCallAudio',
+        <String, dynamic>{'uuid': uuid, 'audioRoute': route});
+    return resp ?? false;
+  }
+
+  /// The current Android audio state of a call, null before the system
+  /// reported one.
+  Future<AudioStateData?> getAudioState(String uuid) async {
+    if (isIOS) {
+      return null;
+    }
+    var resp = await _channel.invokeMapMethod<String, dynamic>(
+        'getAudioState', <String, dynamic>{'uuid': uuid});
+    return resp == null ? null : AudioStateData.fromMap(resp);
+  }
+
   Future<void> sendDTMF({required String uuid, required String key}) async =>
       await _channel.invokeMethod<void>(
           'sendDTMF', <String, dynamic>{'uuid': uuid, 'key': key});
@@ -423,8 +576,25 @@ class FlutterCallkeep extends EventManager {
   }
 
   Future<void> eventListener(MethodCall call) async {
+    if (call.method == kCallKeepEventBatch) {
+      for (final event in unbatchMethodCall(call)) {
+        await eventListener(event);
+      }
+      return;
+    }
     logger.d(
         '[CallKeep] INFO: received event "${call.method}" ${call.arguments}');
+    if (call.method == 'CallKeepDidLoadWithEvents') {
+      // Events published on Android before setup() attached a listener
+      final pending = call.arguments is List
+          ? methodCallsFromEntries(call.arguments as List<dynamic>)
+          : const <MethodCall>[];
+      for (final event in pending) {
+        await eventListener(event);
+      }
+      emit(CallKeepDidLoadWithEvents(pending.length));
+      return;
+    }
     final data = call.arguments as Map<dynamic, dynamic>;
     switch (call.method) {
       case 'CallKeepDidReceiveStartCallAction':
@@ -457,15 +627,23 @@ class FlutterCallkeep extends EventManager {
       case 'CallKeepDidPerformDTMFAction':
         emit(CallKeepDidPerformDTMFAction.fromMap(data));
         break;
+      case 'CallKeepDidChangeAudioAction':
+        final audio = CallKeepDidChangeAudioAction.fromMap(data);
+        emit(audio);
+        // Android reports mute changes as part of the audio state
+        if (audio.muteChanged) {
+          emit(CallKeepDidPerformSetMutedCallAction.fromMap(data));
+        }
+        break;
+      case 'CallKeepDidChangeConferenceAction':
+        emit(CallKeepDidChangeConferenceAction.fromMap(data));
+        break;
       case 'CallKeepProviderReset':
         emit(CallKeepProviderReset());
         break;
       case 'CallKeepCheckReachability':
         emit(CallKeepCheckReachability());
         break;
-      case 'CallKeepDidLoadWithEvents':
-        emit(CallKeepDidLoadWithEvents());
-        break;
       case 'CallKeepPushKitToken':
         emit(CallKeepPushKitToken.fromMap(data));
         break;
@@ -0,0 +1,24 @@
+import 'dart:async';
+import 'dart:ui';
+
+import 'package:flutter/services.dart';
+import 'package:flutter/widgets.dart';
+
+/// Entry point of the headless engine started by the Android
+/// CallKeepBackgroundMessagingService. Looks up the handler passed to
+/// FlutterCallkeep.registerBackgroundHandler and runs it.
+@pragma('vm:entry-point')
+Future<void> callkeepBackgroundDispatcher() async {
+  WidgetsFlutterBinding.ensureInitialized();
+  const channel = MethodChannel('FlutterCallKeep.Method');
+  final rawHandle =
+      await channel.invokeMethod<int>('getBackgroundCallbackHandle');
+  if (rawHandle == null || rawHandle == 0) {
+    return;
+  }
+  final handler = PluginUtilities.getCallbackFromHandle(
+      CallbackHandle.fromRawHandle(rawHandle));
+  if (handler is FutureOr<void> Function()) {
+    await handler();
+  }
+}
@@ -32,3 +32,95 @@ class CallData {
   final bool? fromPushKit;
   final Map<String, dynamic>? additionalData;
 }
+
+/// One entry of [FlutterCallkeep.batchCommands]. [op] is the name of the
+/// single-call method (e.g. `setMutedCall`, `setOnHold`, `endCall`) and [args]
+/// uses the same argument keys, without the uuid.
+class CallCommand {
+  const CallCommand(this.uuid, this.op, [this.args = const <String, dynamic>{}]);
+
+  CallCommand.setMuted(String uuid, bool muted)
+      : this(uuid, 'setMutedCall', <String, dynamic>{'muted': muted});
+
+  CallCommand.setOnHold(String uuid, bool hold)
+      : this(uuid, 'setOnHold', <String, dynamic>{'hold': hold});
+
+  CallCommand.setCallAudio(String uuid, int audioRoute)
+      : this(uuid, 'setCallAudio', <String, dynamic>{'audioRoute': audioRoute});
+
+  const CallCommand.endCall(String uuid) : this(uuid, 'endCall');
+
+  CallCommand.reportEndCall(String uuid, int reason, {bool notify = false})
+      : this(uuid, 'reportEndCallWithUUID',
+            <String, dynamic>{'reason': reason, 'notify': notify});
+
+  final String uuid;
+  final String op;
+  final Map<String, dynamic> args;
+
+  Map<String, dynamic> toMap() =>
+      <String, dynamic>{'uuid': uuid, 'op': op, 'args': args};
+}
+
+class CallCommandResult {
+  CallCommandResult.fromMap(Map<dynamic, dynamic> arguments)
+      : uuid = arguments['uuid'],
+        op = arguments['op'],
+        success = arguments['success'] == true,
+        error = arguments['error'];
+
+  final String? uuid;
+  final String? op;
+  final bool success;
+
+  /// E_CALL_NOT_FOUND, E_PHONE_ACCOUNT_UNAVAILABLE, E_UNKNOWN_OPERATION,
+  /// E_INVALID_ARGUMENTS, E_UNSUPPORTED_AUDIO_ROUTE or E_COMMAND_FAILED when
+  /// [success] is false.
+  final String? error;
+}
+
+class ConferenceData {
+  ConferenceData.fromMap(Map<dynamic, dynamic> arguments)
+      : conferenceId = arguments['conferenceId'],
+        hold = arguments['hold'] == true,
+        participants = List<String>.from(arguments['participants'] ?? []);
+
+  final String? conferenceId;
+  final bool hold;
+
+  /// UUIDs of the calls in the conference.
+  final List<String> participants;
+}
+
+/// Android `CallAudioState` routes, used as bits in [AudioStateData.supportedRouteMask].
+class AudioRoute {
+  static const int earpiece = 1;
+  static const int bluetooth = 2;
+  static const int wiredHeadset = 4;
+  static const int speaker = 8;
+}
+
+/// Android `Connection` states, see [FlutterCallkeep.callsInState].
+class CallState {
+  static const int ringing = 2;
+  static const int dialing = 3;
+  static const int active = 4;
+  static const int holding = 5;
+}
+
+class AudioStateData {
+  AudioStateData.fromMap(Map<dynamic, dynamic> arguments)
+      : muted = arguments['muted'] == true,
+        audioRoute = arguments['audioRoute'] ?? 0,
+        supportedRouteMask = arguments['supportedRouteMask'] ?? 0;
+
+  final bool muted;
+
+  /// One of the [AudioRoute] values.
+  final int audioRoute;
+
+  /// [AudioRoute] bits the call can switch to.
+  final int supportedRouteMask;
+
+  bool supports(int route) => supportedRouteMask & route != 0;
+}
@@ -1,4 +1,5 @@
 import 'package:flutter/cupertino.dart';
+import 'package:flutter/services.dart';
 
 import 'package:logger/web.dart';
 
@@ -7,6 +8,32 @@ abstract class EventType {
   void sanityCheck() {}
 }
 
+/// Method name used by the Android side when several events are coalesced
+/// into a single platform channel message.
+const String kCallKeepEventBatch = 'CallKeepEventBatch';
+
+/// Splits a "CallKeepEventBatch" call into the individual method calls it
+/// carries, in the order they were queued on the native side.
+///
+/// Any other call is returned as a single element list, so callers can always
+/// iterate the result.
+List<MethodCall> unbatchMethodCall(MethodCall call) {
+  if (call.method != kCallKeepEventBatch) {
+    return <MethodCall>[call];
+  }
+  return methodCallsFromEntries(call.arguments as List<dynamic>?);
+}
+
+/// Converts a list of `{event, body}` entries, as sent in a
+/// "CallKeepEventBatch" or "CallKeepDidLoadWithEvents" message, to method
+/// calls.
+List<MethodCall> methodCallsFromEntries(List<dynamic>? entries) {
+  return (entries ?? const <dynamic>[]).map((dynamic event) {
+    final entry = event as Map<dynamic, dynamic>;
+    return MethodCall(entry['event'] as String, entry['body']);
+  }).toList(growable: false);
+}
+
 /// This class serves as a Typed event bus.
 ///
 /// Events can be subscribed to by calling the "on" method.